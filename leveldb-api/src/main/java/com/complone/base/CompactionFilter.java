@@ -0,0 +1,29 @@
+package com.complone.base;
+
+/**
+ * Lets compactions drop or rewrite entries while they copy them to the
+ * next level, so expired or garbage records are purged without scanning
+ * the database and issuing deletes.
+ * <p/>
+ * Only the newest value of a key is passed to the filter, and only when no
+ * live snapshot can see it; entries that are not rewritten by a compaction
+ * (for example files moved to the next level as they are) are not
+ * filtered. Compactions may run in parallel, so implementations must be
+ * thread safe.
+ */
+public interface CompactionFilter
+{
+    String name();
+
+    /**
+     * Returns {@code existingValue} to keep the entry, a different value to
+     * replace it, or null to remove the key. A removed key reads as deleted
+     * even if older values of it are stored in lower levels. In TTL mode
+     * expired entries are removed before the filter is called, the filter
+     * sees values without their expiry time and a replaced value keeps the
+     * expiry time of the original.
+     *
+     * @param level the level the compaction reads from
+     */
+    byte[] filter(int level, byte[] key, byte[] existingValue);
+}
@@ -0,0 +1,33 @@
+package com.complone.base;
+
+/**
+ * How background compactions pick their input files.
+ */
+public enum CompactionStyle
+{
+    /**
+     * Every level above level 0 is about ten times larger than the previous
+     * one, and compactions merge one file into the overlapping files of the
+     * next level. Keeps read and space amplification low at the cost of
+     * rewriting data once per level.
+     */
+    LEVEL,
+
+    /**
+     * Size-tiered compaction: every level 0 file and every non-empty level
+     * above it is one sorted run, and compactions merge adjacent runs of
+     * similar size. Data is rewritten far less often than with LEVEL, but
+     * reads may have to check more runs and space amplification is higher.
+     */
+    UNIVERSAL,
+
+    /**
+     * All files stay in level 0 and are never merged. Once the files exceed
+     * the size or age cap the oldest ones are deleted, together with every
+     * entry stored in them. Only suitable for append-only data such as logs
+     * or time series where old entries may be dropped as a whole. Writes are
+     * not slowed down or stopped by the number of level 0 files, and manual
+     * range compactions do nothing.
+     */
+    FIFO
+}
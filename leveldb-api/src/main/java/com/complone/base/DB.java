@@ -1,6 +1,7 @@
 package com.complone.base;
 
 import java.io.Closeable;
+import java.util.List;
 import java.util.Map;
 
 public interface DB
@@ -12,6 +13,22 @@ public interface DB
     byte[] get(byte[] key, ReadOptions options)
             throws DBException;
 
+    /**
+     * @return the values in the same order as keys, with null for keys that
+     * do not exist.
+     */
+    List<byte[]> multiGet(List<byte[]> keys)
+            throws DBException;
+
+    /**
+     * Reads all keys from a single consistent view of the DB.
+     *
+     * @return the values in the same order as keys, with null for keys that
+     * do not exist.
+     */
+    List<byte[]> multiGet(List<byte[]> keys, ReadOptions options)
+            throws DBException;
+
     @Override
     DBIterator iterator();
 
@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base;
+
+import java.util.List;
+
+public interface FilterPolicy
+{
+    /**
+     * The name is stored in the metaindex block of every table, a table is only
+     * filtered when the name matches the policy the database was opened with.
+     */
+    String name();
+
+    /**
+     * Returns a filter that summarizes {@code keys}, keys are in sorted order
+     * and may contain duplicates.
+     */
+    byte[] createFilter(List<byte[]> keys);
+
+    /**
+     * Must return true if the key was in the list passed to createFilter.
+     * May return true or false if the key was not in the list, but should
+     * aim to return false with a high probability.
+     */
+    boolean keyMayMatch(byte[] key, byte[] filter);
+}
@@ -0,0 +1,11 @@
+package com.complone.base;
+
+/**
+ * Chooses the in-memory representation of the write buffer. The database
+ * only accepts factories provided by the implementation module, this
+ * interface is the handle used to pass them through {@link Options}.
+ */
+public interface MemTableFactory
+{
+    String name();
+}
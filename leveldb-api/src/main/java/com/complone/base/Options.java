@@ -5,6 +5,9 @@ public class Options
     private boolean createIfMissing = true;
     private boolean errorIfExists;
     private int writeBufferSize = 4 << 20;
+    private int maxWriteBufferNumber = 2;
+    private int maxBackgroundCompactions = 1;
+    private int maxSubcompactions = 1;
 
     private int maxOpenFiles = 1000;
 
@@ -15,7 +18,20 @@ public class Options
     private boolean paranoidChecks;
     private DBComparator comparator;
     private Logger logger;
-    private long cacheSize;
+    private long cacheSize = 8 << 20;
+    private FilterPolicy filterPolicy;
+    private int parallelMemTableInsertThreshold;
+    private MemTableFactory memTableFactory;
+    private double memTableBloomSizeRatio;
+    private WriteBufferManager writeBufferManager;
+    private RateLimiter rateLimiter;
+    private CompactionFilter compactionFilter;
+    private long ttlSeconds;
+    private CompactionStyle compactionStyle = CompactionStyle.LEVEL;
+    private int universalSizeRatio = 1;
+    private int universalMaxSizeAmplificationPercent = 200;
+    private long fifoMaxTableFilesSize = 1L << 30;
+    private long fifoTtlSeconds;
 
     static void checkArgNotNull(Object value, String name)
     {
@@ -57,6 +73,68 @@ public class Options
         return this;
     }
 
+    public int maxWriteBufferNumber()
+    {
+        return maxWriteBufferNumber;
+    }
+
+    /**
+     * Maximum number of memtables, the active one included. When the active
+     * memtable is full it becomes immutable and writes continue in a new one
+     * until this many memtables are waiting; a flush writes all pending
+     * immutable memtables into a single level 0 file. The default of 2 keeps
+     * one immutable memtable, as before.
+     */
+    public Options maxWriteBufferNumber(int maxWriteBufferNumber)
+    {
+        if (maxWriteBufferNumber < 2) {
+            throw new IllegalArgumentException("maxWriteBufferNumber must be at least 2");
+        }
+        this.maxWriteBufferNumber = maxWriteBufferNumber;
+        return this;
+    }
+
+    public int maxBackgroundCompactions()
+    {
+        return maxBackgroundCompactions;
+    }
+
+    /**
+     * Number of compactions that may run at the same time. Compactions only
+     * run together when their input files do not overlap, and at most one of
+     * them compacts level 0. Memtable flushes have their own thread and are
+     * not counted here.
+     */
+    public Options maxBackgroundCompactions(int maxBackgroundCompactions)
+    {
+        if (maxBackgroundCompactions < 1) {
+            throw new IllegalArgumentException("maxBackgroundCompactions must be positive");
+        }
+        this.maxBackgroundCompactions = maxBackgroundCompactions;
+        return this;
+    }
+
+    public int maxSubcompactions()
+    {
+        return maxSubcompactions;
+    }
+
+    /**
+     * Maximum number of threads a single level 0 compaction is split across.
+     * The key range is divided at input file boundaries and every part is
+     * merged into its own output files in parallel; all outputs are installed
+     * together. Only compactions with at least one output file worth of input
+     * per part are split.
+     */
+    public Options maxSubcompactions(int maxSubcompactions)
+    {
+        if (maxSubcompactions < 1) {
+            throw new IllegalArgumentException("maxSubcompactions must be positive");
+        }
+        this.maxSubcompactions = maxSubcompactions;
+        return this;
+    }
+
     public int maxOpenFiles()
     {
         return maxOpenFiles;
@@ -156,4 +234,219 @@ public class Options
         this.paranoidChecks = paranoidChecks;
         return this;
     }
+
+    public FilterPolicy filterPolicy()
+    {
+        return filterPolicy;
+    }
+
+    public Options filterPolicy(FilterPolicy filterPolicy)
+    {
+        this.filterPolicy = filterPolicy;
+        return this;
+    }
+
+    public int parallelMemTableInsertThreshold()
+    {
+        return parallelMemTableInsertThreshold;
+    }
+
+    /**
+     * Write batches with at least this many entries are split into parts
+     * that are inserted into the memtable concurrently. 0 disables parallel
+     * insertion.
+     */
+    public Options parallelMemTableInsertThreshold(int parallelMemTableInsertThreshold)
+    {
+        if (parallelMemTableInsertThreshold < 0) {
+            throw new IllegalArgumentException("parallelMemTableInsertThreshold is negative");
+        }
+        this.parallelMemTableInsertThreshold = parallelMemTableInsertThreshold;
+        return this;
+    }
+
+    public MemTableFactory memTableFactory()
+    {
+        return memTableFactory;
+    }
+
+    /**
+     * The factory used to create memtables, null selects the default
+     * skip-list memtable.
+     */
+    public Options memTableFactory(MemTableFactory memTableFactory)
+    {
+        this.memTableFactory = memTableFactory;
+        return this;
+    }
+
+    public double memTableBloomSizeRatio()
+    {
+        return memTableBloomSizeRatio;
+    }
+
+    /**
+     * Size of the bloom filter kept for each memtable, as a fraction of
+     * writeBufferSize. Point lookups skip a memtable whose filter rules the
+     * key out. 0 disables the filter.
+     */
+    public Options memTableBloomSizeRatio(double memTableBloomSizeRatio)
+    {
+        if (memTableBloomSizeRatio < 0 || memTableBloomSizeRatio > 0.25) {
+            throw new IllegalArgumentException("memTableBloomSizeRatio must be between 0 and 0.25");
+        }
+        this.memTableBloomSizeRatio = memTableBloomSizeRatio;
+        return this;
+    }
+
+    public WriteBufferManager writeBufferManager()
+    {
+        return writeBufferManager;
+    }
+
+    /**
+     * Share a memtable memory budget with other databases, null means the
+     * database is only limited by its own writeBufferSize.
+     */
+    public Options writeBufferManager(WriteBufferManager writeBufferManager)
+    {
+        this.writeBufferManager = writeBufferManager;
+        return this;
+    }
+
+    public RateLimiter rateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    /**
+     * Limit the write rate of memtable flushes and compactions, null means
+     * background I/O is not limited.
+     */
+    public Options rateLimiter(RateLimiter rateLimiter)
+    {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    public CompactionFilter compactionFilter()
+    {
+        return compactionFilter;
+    }
+
+    /**
+     * Filter applied to the entries rewritten by compactions, null keeps
+     * every entry.
+     */
+    public Options compactionFilter(CompactionFilter compactionFilter)
+    {
+        this.compactionFilter = compactionFilter;
+        return this;
+    }
+
+    public long ttlSeconds()
+    {
+        return ttlSeconds;
+    }
+
+    /**
+     * Opens the database in TTL mode when positive: every value written
+     * expires this many seconds later. Expired values are hidden from reads
+     * and dropped by compaction. The expiry time is stored with each value,
+     * so a database written in TTL mode must always be opened in TTL mode;
+     * changing the TTL only affects new writes. 0 disables TTL mode.
+     */
+    public Options ttlSeconds(long ttlSeconds)
+    {
+        if (ttlSeconds < 0) {
+            throw new IllegalArgumentException("ttlSeconds is negative");
+        }
+        this.ttlSeconds = ttlSeconds;
+        return this;
+    }
+
+    public CompactionStyle compactionStyle()
+    {
+        return compactionStyle;
+    }
+
+    public Options compactionStyle(CompactionStyle compactionStyle)
+    {
+        checkArgNotNull(compactionStyle, "compactionStyle");
+        this.compactionStyle = compactionStyle;
+        return this;
+    }
+
+    public int universalSizeRatio()
+    {
+        return universalSizeRatio;
+    }
+
+    /**
+     * Universal compaction merges a run into the newer runs before it when
+     * it is at most this many percent larger than their total size.
+     */
+    public Options universalSizeRatio(int universalSizeRatio)
+    {
+        if (universalSizeRatio < 0) {
+            throw new IllegalArgumentException("universalSizeRatio is negative");
+        }
+        this.universalSizeRatio = universalSizeRatio;
+        return this;
+    }
+
+    public int universalMaxSizeAmplificationPercent()
+    {
+        return universalMaxSizeAmplificationPercent;
+    }
+
+    /**
+     * Universal compaction merges all runs once the runs other than the
+     * oldest one are larger than this percentage of the oldest run.
+     */
+    public Options universalMaxSizeAmplificationPercent(int universalMaxSizeAmplificationPercent)
+    {
+        if (universalMaxSizeAmplificationPercent < 0) {
+            throw new IllegalArgumentException("universalMaxSizeAmplificationPercent is negative");
+        }
+        this.universalMaxSizeAmplificationPercent = universalMaxSizeAmplificationPercent;
+        return this;
+    }
+
+    public long fifoMaxTableFilesSize()
+    {
+        return fifoMaxTableFilesSize;
+    }
+
+    /**
+     * FIFO compaction deletes the oldest table files once all table files
+     * together are larger than this many bytes.
+     */
+    public Options fifoMaxTableFilesSize(long fifoMaxTableFilesSize)
+    {
+        if (fifoMaxTableFilesSize <= 0) {
+            throw new IllegalArgumentException("fifoMaxTableFilesSize must be positive");
+        }
+        this.fifoMaxTableFilesSize = fifoMaxTableFilesSize;
+        return this;
+    }
+
+    public long fifoTtlSeconds()
+    {
+        return fifoTtlSeconds;
+    }
+
+    /**
+     * FIFO compaction also deletes table files written more than this many
+     * seconds ago. The age is checked whenever compactions are scheduled,
+     * for example after a memtable flush. 0 disables the age cap.
+     */
+    public Options fifoTtlSeconds(long fifoTtlSeconds)
+    {
+        if (fifoTtlSeconds < 0) {
+            throw new IllegalArgumentException("fifoTtlSeconds is negative");
+        }
+        this.fifoTtlSeconds = fifoTtlSeconds;
+        return this;
+    }
 }
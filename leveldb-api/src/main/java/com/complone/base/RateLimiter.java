@@ -0,0 +1,23 @@
+package com.complone.base;
+
+/**
+ * Limits the bytes per second written by memtable flushes and compactions,
+ * so background I/O does not starve foreground reads. Flushes are served
+ * before compactions.
+ * <p/>
+ * Share one instance across {@link Options} to bound the I/O of several
+ * databases on the same disk. The database only accepts limiters created
+ * by the implementation module, this interface is the handle used to pass
+ * them through {@link Options}.
+ */
+public interface RateLimiter
+{
+    /**
+     * The current rate; below the configured one while auto tuning lowered it.
+     */
+    long bytesPerSecond();
+
+    long totalBytesThrough();
+
+    long totalRequests();
+}
@@ -0,0 +1,21 @@
+package com.complone.base;
+
+/**
+ * Limits the memtable memory of all databases opened with the same
+ * manager. When the total exceeds the budget the database with the
+ * largest active memtable is asked to flush it.
+ * <p/>
+ * Share one instance across {@link Options} to bound memory for many
+ * databases in one process. The database only accepts managers created by
+ * the implementation module, this interface is the handle used to pass
+ * them through {@link Options}.
+ */
+public interface WriteBufferManager
+{
+    long bufferSize();
+
+    /**
+     * Memtable memory currently reported by all databases.
+     */
+    long memoryUsage();
+}
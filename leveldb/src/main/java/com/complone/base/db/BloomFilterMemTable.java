@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.impl.LookupKey;
+import com.complone.base.impl.LookupResult;
+import com.complone.base.impl.ValueType;
+import com.complone.base.include.Slice;
+import com.complone.base.table.BloomFilterPolicy;
+import com.complone.base.utils.DataUnit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 给memtable加上一个按user key构建的bloom filter，对应RocksDB中的memtable bloom filter。
+ * 写入时把user key加入filter，get时先检查filter，key一定不存在时不再查找底层的memtable，
+ * 大部分读取的key都不在memtable中时，可以省掉active和immutable memtable上的两次查找。
+ * <p/>
+ * filter的大小在创建时确定，写入的key越多误判率越高，但是不会漏判。bit通过CAS设置，可以并发写入。
+ */
+public class BloomFilterMemTable
+        extends MemTable
+{
+    // 和RocksDB一样使用6个hash函数
+    private static final int PROBES = 6;
+
+    private final MemTable memTable;
+    private final AtomicLongArray bits;
+    private final int bitCount;
+
+    public BloomFilterMemTable(MemTable memTable, int filterBytes)
+    {
+        requireNonNull(memTable, "memTable is null");
+        checkArgument(filterBytes > 0, "filterBytes must be positive");
+        this.memTable = memTable;
+        int words = (filterBytes + DataUnit.LONG_UNIT - 1) / DataUnit.LONG_UNIT;
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = words * Long.SIZE;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return memTable.isEmpty();
+    }
+
+    @Override
+    public long approximateMemoryUsage()
+    {
+        // filter占用的内存也计算在memtable中
+        return memTable.approximateMemoryUsage() + (long) bits.length() * DataUnit.LONG_UNIT;
+    }
+
+    @Override
+    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value)
+    {
+        // 先加入filter再写入memtable，保证能读到key时filter中一定已经有这个key
+        int h = BloomFilterPolicy.bloomHash(key);
+        int delta = (h >>> 17) | (h << 15);
+        for (int j = 0; j < PROBES; j++) {
+            setBit(Integer.remainderUnsigned(h, bitCount));
+            h += delta;
+        }
+        memTable.add(sequenceNumber, valueType, key, value);
+    }
+
+    @Override
+    public void markImmutable()
+    {
+        memTable.markImmutable();
+    }
+
+    @Override
+    public LookupResult get(LookupKey key)
+    {
+        if (!mayContain(key.getUserKey())) {
+            return null;
+        }
+        return memTable.get(key);
+    }
+
+    @Override
+    public MemTableIterator iterator()
+    {
+        return memTable.iterator();
+    }
+
+    private boolean mayContain(Slice userKey)
+    {
+        int h = BloomFilterPolicy.bloomHash(userKey);
+        int delta = (h >>> 17) | (h << 15);
+        for (int j = 0; j < PROBES; j++) {
+            int bit = Integer.remainderUnsigned(h, bitCount);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+            h += delta;
+        }
+        return true;
+    }
+
+    private void setBit(int bit)
+    {
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        while (true) {
+            long word = bits.get(index);
+            if ((word & mask) != 0 || bits.compareAndSet(index, word, word | mask)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 对应源码中的Arena，内存从direct memory中按block分配，不占用java堆。
+ * 分配出来的地址是一个long：高32位是block的下标，低32位是block内的偏移，一次分配不会跨越两个block。
+ * 多个线程可以并发分配，block内通过原子地移动偏移量分配，只有切换block时才加锁。
+ * block只增不减，arena不再被引用之后，direct memory随ByteBuffer一起被回收。
+ */
+final class DirectArena
+{
+    private final int blockSize;
+    // 写时复制，读线程不需要加锁
+    private volatile ByteBuffer[] blocks = new ByteBuffer[0];
+    private volatile Block current;
+    private final AtomicLong memoryUsage = new AtomicLong();
+
+    DirectArena(int blockSize)
+    {
+        checkArgument(blockSize > 0, "blockSize must be positive");
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * 分配size字节，返回地址
+     */
+    public long allocate(int size)
+    {
+        checkArgument(size > 0, "size must be positive");
+        // 和源码中一样，大于block四分之一的对象单独分配一个block，避免浪费当前block剩余的空间
+        if (size > blockSize / 4) {
+            return address(newBlock(size).index, 0);
+        }
+
+        while (true) {
+            Block block = current;
+            if (block != null) {
+                int offset = block.position.getAndAdd(size);
+                if (offset + size <= blockSize) {
+                    return address(block.index, offset);
+                }
+            }
+            synchronized (this) {
+                // 其他线程可能已经切换了block
+                if (current == block) {
+                    current = newBlock(blockSize);
+                }
+            }
+        }
+    }
+
+    // 返回地址所在的block，通过偏移读写，不能修改position和limit
+    public ByteBuffer block(long address)
+    {
+        return blocks[(int) (address >>> 32)];
+    }
+
+    public static int offset(long address)
+    {
+        return (int) address;
+    }
+
+    // 所有block占用的direct memory
+    public long memoryUsage()
+    {
+        return memoryUsage.get();
+    }
+
+    private synchronized Block newBlock(int size)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer[] newBlocks = Arrays.copyOf(blocks, blocks.length + 1);
+        newBlocks[newBlocks.length - 1] = buffer;
+        blocks = newBlocks;
+        memoryUsage.addAndGet(size);
+        return new Block(newBlocks.length - 1);
+    }
+
+    private static long address(int blockIndex, int offset)
+    {
+        return ((long) blockIndex << 32) | offset;
+    }
+
+    private static final class Block
+    {
+        private final int index;
+        private final AtomicInteger position = new AtomicInteger();
+
+        private Block(int index)
+        {
+            this.index = index;
+        }
+    }
+}
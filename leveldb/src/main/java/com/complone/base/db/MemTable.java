@@ -13,18 +13,13 @@
  */
 package com.complone.base.db;
 
-import com.complone.base.impl.*;
+import com.complone.base.impl.InternalKey;
+import com.complone.base.impl.LookupKey;
+import com.complone.base.impl.LookupResult;
+import com.complone.base.impl.SeekingIterable;
+import com.complone.base.impl.ValueType;
 import com.complone.base.include.Slice;
-import com.complone.base.utils.DataUnit;
-import com.google.common.collect.Iterators;
-import com.google.common.collect.PeekingIterator;
 import com.complone.base.utils.InternalIterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicLong;
-
-import static java.util.Objects.requireNonNull;
-
 
 /**
  * leveldb之所以有level这个单词就是因为数据存储分层管理，而日志和内存表（memtable）处于第0层
@@ -37,64 +32,29 @@ import static java.util.Objects.requireNonNull;
  * Memtable提供了写入KV记录，删除以及读取KV记录的接口，
  * 但是事实上Memtable并不执行真正的删除操作,删除某个Key的Value在Memtable内是作为插入一条记录实施的，但是会打上一个Key的删除标记，
  * 真正的删除操作在后面的 Compaction过程中，lazy delete。
- * ConcurrentSkipListMap是MemTable的核心数据结构，memtable的KV数据都存储在ConcurrentSkipListMap中。
+ *
+ * 具体的存储结构由子类决定，add和get需要支持多个线程并发调用。
  */
-public class MemTable
+public abstract class MemTable
         implements SeekingIterable<InternalKey, Slice>
 {
-    private final ConcurrentSkipListMap<InternalKey, Slice> table;
-    private final AtomicLong approximateMemoryUsage = new AtomicLong();
+    public abstract boolean isEmpty();
 
-    public MemTable(InternalKeyComparator internalKeyComparator)
-    {
-        table = new ConcurrentSkipListMap<>(internalKeyComparator);
-    }
-
-    public boolean isEmpty()
-    {
-        return table.isEmpty();
-    }
+    // 用来判断memtable是否写满，需要切换成immutable memtable
+    public abstract long approximateMemoryUsage();
 
-    public long approximateMemoryUsage()
-    {
-        return approximateMemoryUsage.get();
-    }
+    public abstract void add(long sequenceNumber, ValueType valueType, Slice key, Slice value);
 
-    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value)
+    /**
+     * 变成immutable memtable时在mutex下调用，之后不会再有写入。
+     * 需要在写入完成后整理数据的实现可以覆盖这个方法，默认什么都不做
+     */
+    public void markImmutable()
     {
-        requireNonNull(valueType, "valueType is null");
-        requireNonNull(key, "key is null");
-
-        InternalKey internalKey = new InternalKey(key, sequenceNumber, valueType);
-        table.put(internalKey, value);
-
-        // 将在函数的参数中传递的值添加到先前的值,并返回数据类型为long的新更新值。
-        approximateMemoryUsage.addAndGet(key.length() + DataUnit.LONG_UNIT + value.length());
     }
 
     // Memtable的查询接口传入的是LookupKey，它也是由User Key和Sequence Number组合而成的
-    public LookupResult get(LookupKey key)
-    {
-        requireNonNull(key, "key is null");
-
-        InternalKey internalKey = key.getInternalKey();
-        // 返回与该键至少大于或等于给定键,如果不存在这样的键的键 - 值映射,则返回null相关联。
-        Map.Entry<InternalKey, Slice> entry = table.ceilingEntry(internalKey);
-        if (entry == null) {
-            return null;
-        }
-
-        InternalKey entryKey = entry.getKey();
-        if (entryKey.getUserKey().equals(key.getUserKey())) {
-            if (entryKey.getValueType() == ValueType.DELETION) {
-                return LookupResult.deleted(key);
-            }
-            else {
-                return LookupResult.ok(key, entry.getValue());
-            }
-        }
-        return null;
-    }
+    public abstract LookupResult get(LookupKey key);
 
     /**
      * 可以遍历访问table的内部数据，很好的设计思想，这种方式隐藏了table的内部实现。
@@ -102,58 +62,10 @@ public class MemTable
      * @return 返回一个迭代器
      */
     @Override
-    public MemTableIterator iterator()
-    {
-        return new MemTableIterator();
-    }
+    public abstract MemTableIterator iterator();
 
-    public class MemTableIterator
-            implements InternalIterator
+    public interface MemTableIterator
+            extends InternalIterator
     {
-        // PeekingIterator是自定义的迭代器，是对顶层迭代器Iterator的封装。
-        private PeekingIterator<Map.Entry<InternalKey, Slice>> iterator;
-
-        public MemTableIterator()
-        {
-            iterator = Iterators.peekingIterator(table.entrySet().iterator());
-        }
-
-        @Override
-        public boolean hasNext()
-        {
-            return iterator.hasNext();
-        }
-
-        @Override
-        public void seekToFirst()
-        {
-            iterator = Iterators.peekingIterator(table.entrySet().iterator());
-        }
-
-        @Override
-        public void seek(InternalKey targetKey)
-        {
-            iterator = Iterators.peekingIterator(table.tailMap(targetKey).entrySet().iterator());
-        }
-
-        @Override
-        public InternalEntry peek()
-        {
-            Map.Entry<InternalKey, Slice> entry = iterator.peek();
-            return new InternalEntry(entry.getKey(), entry.getValue());
-        }
-
-        @Override
-        public InternalEntry next()
-        {
-            Map.Entry<InternalKey, Slice> entry = iterator.next();
-            return new InternalEntry(entry.getKey(), entry.getValue());
-        }
-
-        @Override
-        public void remove()
-        {
-            throw new UnsupportedOperationException();
-        }
     }
 }
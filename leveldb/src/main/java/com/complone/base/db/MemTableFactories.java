@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.impl.InternalKeyComparator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 内置的memtable实现，通过Options.memTableFactory选择
+ */
+public final class MemTableFactories
+{
+    private MemTableFactories()
+    {
+    }
+
+    // 默认实现，基于ConcurrentSkipListMap
+    public static InternalMemTableFactory skipList()
+    {
+        return new InternalMemTableFactory()
+        {
+            @Override
+            public String name()
+            {
+                return "SkipListMemTable";
+            }
+
+            @Override
+            public MemTable newMemTable(InternalKeyComparator internalKeyComparator, int writeBufferSize)
+            {
+                return new SkipListMemTable(internalKeyComparator);
+            }
+        };
+    }
+
+    // 数据放在direct memory中，写入时不创建java对象
+    public static InternalMemTableFactory offHeap()
+    {
+        return new InternalMemTableFactory()
+        {
+            @Override
+            public String name()
+            {
+                return "OffHeapMemTable";
+            }
+
+            @Override
+            public MemTable newMemTable(InternalKeyComparator internalKeyComparator, int writeBufferSize)
+            {
+                return new OffHeapMemTable(internalKeyComparator, writeBufferSize);
+            }
+        };
+    }
+
+    // 按user key的前prefixLength个字节分桶，适合只有点查和前缀扫描的场景
+    public static InternalMemTableFactory prefixHash(final int prefixLength)
+    {
+        checkArgument(prefixLength > 0, "prefixLength must be positive");
+        return new InternalMemTableFactory()
+        {
+            @Override
+            public String name()
+            {
+                return "PrefixHashMemTable(" + prefixLength + ")";
+            }
+
+            @Override
+            public MemTable newMemTable(InternalKeyComparator internalKeyComparator, int writeBufferSize)
+            {
+                return new PrefixHashMemTable(internalKeyComparator, prefixLength);
+            }
+        };
+    }
+
+    // 追加写入，变成immutable之后才排序，适合只写不读的批量导入
+    public static InternalMemTableFactory vector()
+    {
+        return new InternalMemTableFactory()
+        {
+            @Override
+            public String name()
+            {
+                return "VectorMemTable";
+            }
+
+            @Override
+            public MemTable newMemTable(InternalKeyComparator internalKeyComparator, int writeBufferSize)
+            {
+                return new VectorMemTable(internalKeyComparator);
+            }
+        };
+    }
+}
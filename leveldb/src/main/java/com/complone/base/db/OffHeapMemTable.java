@@ -0,0 +1,390 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.impl.InternalEntry;
+import com.complone.base.impl.InternalKey;
+import com.complone.base.impl.InternalKeyComparator;
+import com.complone.base.impl.LookupKey;
+import com.complone.base.impl.LookupResult;
+import com.complone.base.impl.SequenceNumber;
+import com.complone.base.impl.ValueType;
+import com.complone.base.include.Slice;
+import com.complone.base.table.BytewiseComparator;
+import com.complone.base.table.UserComparator;
+import com.complone.base.utils.DataUnit;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 数据放在direct memory中的memtable，对应源码中Arena + SkipList的实现，写入时不会为每条记录创建java对象。
+ * <p/>
+ * 每条记录编码后写入DirectArena：
+ * | internal key长度 (4 bytes) | value长度 (4 bytes) | internal key | value |
+ * <p/>
+ * 跳表的节点是links中的一段连续的long：第一个long是记录在arena中的地址，后面是每一层的next节点，
+ * 节点在links中的下标就是它的指针，0表示null。links按chunk分配，一个节点不会跨越两个chunk。
+ * 插入时自底向上逐层CAS，失败时只在这一层重新查找位置，多个线程可以无锁并发插入。
+ * <p/>
+ * approximateMemoryUsage统计的是arena和links实际分配的内存，而不是key和value的长度之和。
+ */
+public class OffHeapMemTable
+        extends MemTable
+{
+    private static final int MAX_HEIGHT = 12;
+    private static final int BRANCHING = 4;
+
+    private static final int MIN_BLOCK_SIZE = 4 * 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    // 头节点，只有next指针，没有对应的记录
+    private static final long HEAD = 0;
+    private static final long NULL = 0;
+
+    private final UserComparator userComparator;
+    // user comparator是BytewiseComparator时直接比较arena中的字节，不用拷贝key
+    private final boolean bytewise;
+
+    private final DirectArena arena;
+
+    private final int linkChunkShift;
+    private final int linkChunkMask;
+    // 写时复制，读线程不需要加锁
+    private volatile AtomicLongArray[] linkChunks = new AtomicLongArray[0];
+    private final AtomicLong nextLink = new AtomicLong(1 + MAX_HEIGHT);
+    private final AtomicInteger maxHeight = new AtomicInteger(1);
+
+    public OffHeapMemTable(InternalKeyComparator internalKeyComparator, int writeBufferSize)
+    {
+        requireNonNull(internalKeyComparator, "internalKeyComparator is null");
+        this.userComparator = internalKeyComparator.getUserComparator();
+        this.bytewise = userComparator instanceof BytewiseComparator;
+
+        // block按write buffer的1/16分配，统计出来的内存使用量最多比实际写入的数据多一个block
+        int blockSize = Integer.highestOneBit(Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, writeBufferSize / 16)));
+        this.arena = new DirectArena(blockSize);
+
+        int linkChunkSize = blockSize / DataUnit.LONG_UNIT;
+        this.linkChunkShift = Integer.numberOfTrailingZeros(linkChunkSize);
+        this.linkChunkMask = linkChunkSize - 1;
+        newLinkChunk(0);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return getNext(HEAD, 0) == NULL;
+    }
+
+    @Override
+    public long approximateMemoryUsage()
+    {
+        return arena.memoryUsage() + (long) linkChunks.length * (linkChunkMask + 1) * DataUnit.LONG_UNIT;
+    }
+
+    @Override
+    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value)
+    {
+        requireNonNull(valueType, "valueType is null");
+        requireNonNull(key, "key is null");
+
+        Slice internalKey = new InternalKey(key, sequenceNumber, valueType).encode();
+        long address = arena.allocate(2 * DataUnit.INT_UNIT + internalKey.length() + value.length());
+        ByteBuffer block = arena.block(address);
+        int offset = DirectArena.offset(address);
+        block.putInt(offset, internalKey.length());
+        block.putInt(offset + DataUnit.INT_UNIT, value.length());
+        ByteBuffer data = block.duplicate();
+        data.position(offset + 2 * DataUnit.INT_UNIT);
+        data.put(internalKey.getData(), internalKey.getOffset(), internalKey.length());
+        data.put(value.getData(), value.getOffset(), value.length());
+
+        int height = randomHeight();
+        long node = newNode(height);
+        setLink(node, address);
+
+        int currentMaxHeight = maxHeight.get();
+        while (height > currentMaxHeight && !maxHeight.compareAndSet(currentMaxHeight, height)) {
+            currentMaxHeight = maxHeight.get();
+        }
+
+        // 从最高层开始找到每一层的前驱和后继
+        long[] prev = new long[height];
+        long[] succ = new long[height];
+        long x = HEAD;
+        for (int level = Math.max(currentMaxHeight, height) - 1; level >= 0; level--) {
+            long next = getNext(x, level);
+            while (next != NULL && compare(next, internalKey) < 0) {
+                x = next;
+                next = getNext(x, level);
+            }
+            if (level < height) {
+                prev[level] = x;
+                succ[level] = next;
+            }
+        }
+
+        // 先插入底层，这样从高层能找到的节点在底层一定已经可见
+        for (int level = 0; level < height; level++) {
+            while (true) {
+                setNext(node, level, succ[level]);
+                if (casNext(prev[level], level, succ[level], node)) {
+                    break;
+                }
+                // 其他线程在这个位置插入了节点，从前驱开始重新查找这一层的位置
+                long next = getNext(prev[level], level);
+                while (next != NULL && compare(next, internalKey) < 0) {
+                    prev[level] = next;
+                    next = getNext(next, level);
+                }
+                succ[level] = next;
+            }
+        }
+    }
+
+    @Override
+    public LookupResult get(LookupKey key)
+    {
+        requireNonNull(key, "key is null");
+
+        long node = findGreaterOrEqual(key.getEncodedKey());
+        if (node == NULL) {
+            return null;
+        }
+
+        long address = link(node);
+        ByteBuffer block = arena.block(address);
+        int offset = DirectArena.offset(address);
+        int userKeyLength = block.getInt(offset) - DataUnit.LONG_UNIT;
+        int keyOffset = offset + 2 * DataUnit.INT_UNIT;
+        Slice userKey = key.getUserKey();
+        if (userKeyLength != userKey.length() || compareBytes(block, keyOffset, userKeyLength, userKey, userKey.length()) != 0) {
+            return null;
+        }
+        ValueType valueType = SequenceNumber.unpackValueType(block.getLong(keyOffset + userKeyLength));
+        if (valueType == ValueType.DELETION) {
+            return LookupResult.deleted(key);
+        }
+        return LookupResult.ok(key, copy(block, keyOffset + userKeyLength + DataUnit.LONG_UNIT, block.getInt(offset + DataUnit.INT_UNIT)));
+    }
+
+    @Override
+    public MemTableIterator iterator()
+    {
+        return new OffHeapMemTableIterator();
+    }
+
+    // 返回第一个 >= internalKey 的节点
+    private long findGreaterOrEqual(Slice internalKey)
+    {
+        long x = HEAD;
+        int level = maxHeight.get() - 1;
+        while (true) {
+            long next = getNext(x, level);
+            if (next != NULL && compare(next, internalKey) < 0) {
+                x = next;
+            }
+            else if (level == 0) {
+                return next;
+            }
+            else {
+                level--;
+            }
+        }
+    }
+
+    // 比较节点的internal key和编码后的internal key，规则和InternalKeyComparator相同
+    private int compare(long node, Slice internalKey)
+    {
+        long address = link(node);
+        ByteBuffer block = arena.block(address);
+        int offset = DirectArena.offset(address);
+        int userKeyLength = block.getInt(offset) - DataUnit.LONG_UNIT;
+        int keyOffset = offset + 2 * DataUnit.INT_UNIT;
+        int targetUserKeyLength = internalKey.length() - DataUnit.LONG_UNIT;
+
+        int result;
+        if (bytewise) {
+            result = compareBytes(block, keyOffset, userKeyLength, internalKey, targetUserKeyLength);
+        }
+        else {
+            result = userComparator.compare(copy(block, keyOffset, userKeyLength), internalKey.slice(0, targetUserKeyLength));
+        }
+        if (result != 0) {
+            return result;
+        }
+        long sequence = SequenceNumber.unpackSequenceNumber(block.getLong(keyOffset + userKeyLength));
+        long targetSequence = SequenceNumber.unpackSequenceNumber(internalKey.getLong(targetUserKeyLength));
+        return Long.compare(targetSequence, sequence);
+    }
+
+    // 按无符号字节比较，和Slice.compareTo相同
+    private static int compareBytes(ByteBuffer block, int offset, int length, Slice target, int targetLength)
+    {
+        byte[] targetData = target.getData();
+        int targetOffset = target.getOffset();
+        int minLength = Math.min(length, targetLength);
+        for (int i = 0; i < minLength; i++) {
+            int thisByte = 0xFF & block.get(offset + i);
+            int thatByte = 0xFF & targetData[targetOffset + i];
+            if (thisByte != thatByte) {
+                return thisByte - thatByte;
+            }
+        }
+        return length - targetLength;
+    }
+
+    // 返回给调用者的key和value需要拷贝到堆上
+    private static Slice copy(ByteBuffer block, int offset, int length)
+    {
+        Slice slice = Slices.allocate(length);
+        ByteBuffer data = block.duplicate();
+        data.position(offset);
+        data.get(slice.getData(), slice.getOffset(), length);
+        return slice;
+    }
+
+    private static int randomHeight()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int height = 1;
+        while (height < MAX_HEIGHT && random.nextInt(BRANCHING) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    // 分配一个节点，节点不能跨越两个chunk，放不下时跳到下一个chunk的开头
+    private long newNode(int height)
+    {
+        int size = 1 + height;
+        while (true) {
+            long start = nextLink.get();
+            long chunkEnd = (start | linkChunkMask) + 1;
+            long node = start + size <= chunkEnd ? start : chunkEnd;
+            if (nextLink.compareAndSet(start, node + size)) {
+                int chunk = (int) (node >>> linkChunkShift);
+                if (chunk >= linkChunks.length) {
+                    newLinkChunk(chunk);
+                }
+                return node;
+            }
+        }
+    }
+
+    private synchronized void newLinkChunk(int chunk)
+    {
+        AtomicLongArray[] chunks = linkChunks;
+        if (chunk < chunks.length) {
+            return;
+        }
+        AtomicLongArray[] newChunks = Arrays.copyOf(chunks, chunk + 1);
+        for (int i = chunks.length; i < newChunks.length; i++) {
+            newChunks[i] = new AtomicLongArray(linkChunkMask + 1);
+        }
+        linkChunks = newChunks;
+    }
+
+    private long link(long node)
+    {
+        return linkChunks[(int) (node >>> linkChunkShift)].get((int) (node & linkChunkMask));
+    }
+
+    private void setLink(long node, long value)
+    {
+        linkChunks[(int) (node >>> linkChunkShift)].set((int) (node & linkChunkMask), value);
+    }
+
+    private long getNext(long node, int level)
+    {
+        return link(node + 1 + level);
+    }
+
+    private void setNext(long node, int level, long next)
+    {
+        setLink(node + 1 + level, next);
+    }
+
+    private boolean casNext(long node, int level, long expect, long next)
+    {
+        long slot = node + 1 + level;
+        return linkChunks[(int) (slot >>> linkChunkShift)].compareAndSet((int) (slot & linkChunkMask), expect, next);
+    }
+
+    private class OffHeapMemTableIterator
+            implements MemTableIterator
+    {
+        private long node;
+
+        public OffHeapMemTableIterator()
+        {
+            node = getNext(HEAD, 0);
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return node != NULL;
+        }
+
+        @Override
+        public void seekToFirst()
+        {
+            node = getNext(HEAD, 0);
+        }
+
+        @Override
+        public void seek(InternalKey targetKey)
+        {
+            node = findGreaterOrEqual(targetKey.encode());
+        }
+
+        @Override
+        public InternalEntry peek()
+        {
+            if (node == NULL) {
+                throw new NoSuchElementException();
+            }
+            long address = link(node);
+            ByteBuffer block = arena.block(address);
+            int offset = DirectArena.offset(address);
+            int keyLength = block.getInt(offset);
+            int valueLength = block.getInt(offset + DataUnit.INT_UNIT);
+            int keyOffset = offset + 2 * DataUnit.INT_UNIT;
+            return new InternalEntry(new InternalKey(copy(block, keyOffset, keyLength)), copy(block, keyOffset + keyLength, valueLength));
+        }
+
+        @Override
+        public InternalEntry next()
+        {
+            InternalEntry entry = peek();
+            node = getNext(node, 0);
+            return entry;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
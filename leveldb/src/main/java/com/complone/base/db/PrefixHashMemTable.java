@@ -0,0 +1,213 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.impl.InternalEntry;
+import com.complone.base.impl.InternalKey;
+import com.complone.base.impl.InternalKeyComparator;
+import com.complone.base.impl.LookupKey;
+import com.complone.base.impl.LookupResult;
+import com.complone.base.impl.ValueType;
+import com.complone.base.include.Slice;
+import com.complone.base.utils.DataUnit;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 按user key的前缀分桶的memtable，对应RocksDB中的HashSkipListRep。
+ * user key的前prefixLength个字节(不足时取整个key)作为前缀，通过hash找到桶，每个桶内部按internal key有序。
+ * 点查只需要一次hash加上在桶内查找，桶内的key较少，比在整个memtable中查找的比较次数少。
+ * <p/>
+ * 遍历整个memtable(flush或者DbIterator)时需要把所有的桶做多路归并，比SkipListMemTable慢，
+ * 所以只适合以点查和前缀扫描为主的场景。
+ */
+public class PrefixHashMemTable
+        extends MemTable
+{
+    private final InternalKeyComparator internalKeyComparator;
+    private final int prefixLength;
+    private final ConcurrentMap<Slice, ConcurrentSkipListMap<InternalKey, Slice>> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong approximateMemoryUsage = new AtomicLong();
+
+    public PrefixHashMemTable(InternalKeyComparator internalKeyComparator, int prefixLength)
+    {
+        requireNonNull(internalKeyComparator, "internalKeyComparator is null");
+        checkArgument(prefixLength > 0, "prefixLength must be positive");
+        this.internalKeyComparator = internalKeyComparator;
+        this.prefixLength = prefixLength;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return buckets.isEmpty();
+    }
+
+    @Override
+    public long approximateMemoryUsage()
+    {
+        return approximateMemoryUsage.get();
+    }
+
+    @Override
+    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value)
+    {
+        requireNonNull(valueType, "valueType is null");
+        requireNonNull(key, "key is null");
+
+        Slice prefix = prefix(key);
+        ConcurrentSkipListMap<InternalKey, Slice> bucket = buckets.get(prefix);
+        if (bucket == null) {
+            ConcurrentSkipListMap<InternalKey, Slice> newBucket = new ConcurrentSkipListMap<>(internalKeyComparator);
+            bucket = buckets.putIfAbsent(prefix, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        bucket.put(new InternalKey(key, sequenceNumber, valueType), value);
+
+        approximateMemoryUsage.addAndGet(key.length() + DataUnit.LONG_UNIT + value.length());
+    }
+
+    @Override
+    public LookupResult get(LookupKey key)
+    {
+        requireNonNull(key, "key is null");
+
+        ConcurrentSkipListMap<InternalKey, Slice> bucket = buckets.get(prefix(key.getUserKey()));
+        if (bucket == null) {
+            return null;
+        }
+        Map.Entry<InternalKey, Slice> entry = bucket.ceilingEntry(key.getInternalKey());
+        if (entry == null) {
+            return null;
+        }
+
+        InternalKey entryKey = entry.getKey();
+        if (entryKey.getUserKey().equals(key.getUserKey())) {
+            if (entryKey.getValueType() == ValueType.DELETION) {
+                return LookupResult.deleted(key);
+            }
+            else {
+                return LookupResult.ok(key, entry.getValue());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public MemTableIterator iterator()
+    {
+        return new PrefixHashMemTableIterator();
+    }
+
+    private Slice prefix(Slice userKey)
+    {
+        return userKey.slice(0, Math.min(prefixLength, userKey.length()));
+    }
+
+    // 对所有桶做多路归并
+    private class PrefixHashMemTableIterator
+            implements MemTableIterator
+    {
+        private final PriorityQueue<PeekingIterator<Map.Entry<InternalKey, Slice>>> heap;
+
+        public PrefixHashMemTableIterator()
+        {
+            heap = new PriorityQueue<>(Math.max(1, buckets.size()), new Comparator<PeekingIterator<Map.Entry<InternalKey, Slice>>>()
+            {
+                @Override
+                public int compare(PeekingIterator<Map.Entry<InternalKey, Slice>> left, PeekingIterator<Map.Entry<InternalKey, Slice>> right)
+                {
+                    return internalKeyComparator.compare(left.peek().getKey(), right.peek().getKey());
+                }
+            });
+            seekToFirst();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public void seekToFirst()
+        {
+            heap.clear();
+            for (ConcurrentSkipListMap<InternalKey, Slice> bucket : buckets.values()) {
+                addIterator(bucket);
+            }
+        }
+
+        @Override
+        public void seek(InternalKey targetKey)
+        {
+            heap.clear();
+            for (ConcurrentSkipListMap<InternalKey, Slice> bucket : buckets.values()) {
+                addIterator(bucket.tailMap(targetKey));
+            }
+        }
+
+        private void addIterator(Map<InternalKey, Slice> bucket)
+        {
+            PeekingIterator<Map.Entry<InternalKey, Slice>> iterator = Iterators.peekingIterator(bucket.entrySet().iterator());
+            if (iterator.hasNext()) {
+                heap.add(iterator);
+            }
+        }
+
+        @Override
+        public InternalEntry peek()
+        {
+            if (heap.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<InternalKey, Slice> entry = heap.peek().peek();
+            return new InternalEntry(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public InternalEntry next()
+        {
+            if (heap.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            PeekingIterator<Map.Entry<InternalKey, Slice>> iterator = heap.poll();
+            Map.Entry<InternalKey, Slice> entry = iterator.next();
+            if (iterator.hasNext()) {
+                heap.add(iterator);
+            }
+            return new InternalEntry(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.RateLimiter;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 限制flush和compaction写入速度的令牌桶，每100ms补充一次令牌；
+ * 等待中的flush(HIGH)先于等待中的compaction(LOW)获得令牌。
+ * 开启auto tuning时配置的速度作为上限：后台I/O很少需要等待时降低速度(最低为上限的1/20)，
+ * 经常被限速时再提高
+ */
+public class RateLimiterImpl
+        implements RateLimiter
+{
+    public enum Priority
+    {
+        HIGH, LOW
+    }
+
+    private static final long REFILL_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long REFILL_PERIODS_PER_SECOND = TimeUnit.SECONDS.toNanos(1) / REFILL_PERIOD_NANOS;
+    // auto tuning每次统计这么多个补充周期
+    private static final int TUNE_PERIODS = 100;
+    private static final int TUNE_LOW_PERCENT = 50;
+    private static final int TUNE_HIGH_PERCENT = 90;
+    private static final int TUNE_STEP_PERCENT = 5;
+    private static final int MIN_RATE_DIVISOR = 20;
+
+    private final long maxBytesPerSecond;
+    private boolean autoTuned;
+    private boolean limitCompactionReads;
+
+    // 以下字段由this保护
+    private long bytesPerSecond;
+    private long refillBytesPerPeriod;
+    private long availableBytes;
+    private long nextRefillNanos;
+    private int waitingHigh;
+    private long totalBytesThrough;
+    private long totalRequests;
+    // auto tuning的统计：经过的补充周期数，以及其中有请求需要等待的周期数
+    private int tunePeriods;
+    private int drainedPeriods;
+    private boolean drained;
+
+    public RateLimiterImpl(long bytesPerSecond)
+    {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+        this.maxBytesPerSecond = bytesPerSecond;
+        setRate(bytesPerSecond);
+        this.availableBytes = refillBytesPerPeriod;
+        this.nextRefillNanos = System.nanoTime() + REFILL_PERIOD_NANOS;
+    }
+
+    public synchronized boolean autoTuned()
+    {
+        return autoTuned;
+    }
+
+    public synchronized RateLimiterImpl autoTuned(boolean autoTuned)
+    {
+        this.autoTuned = autoTuned;
+        if (!autoTuned) {
+            setRate(maxBytesPerSecond);
+        }
+        return this;
+    }
+
+    public synchronized boolean limitCompactionReads()
+    {
+        return limitCompactionReads;
+    }
+
+    /**
+     * compaction读取的数据也按照LOW优先级申请令牌
+     */
+    public synchronized RateLimiterImpl limitCompactionReads(boolean limitCompactionReads)
+    {
+        this.limitCompactionReads = limitCompactionReads;
+        return this;
+    }
+
+    @Override
+    public synchronized long bytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public synchronized long totalBytesThrough()
+    {
+        return totalBytesThrough;
+    }
+
+    @Override
+    public synchronized long totalRequests()
+    {
+        return totalRequests;
+    }
+
+    /**
+     * 阻塞到可以写入bytes个字节，超过一个补充周期的请求分多次获取
+     */
+    public synchronized void request(long bytes, Priority priority)
+    {
+        requireNonNull(priority, "priority is null");
+        totalRequests++;
+        boolean interrupted = false;
+        if (priority == Priority.HIGH) {
+            waitingHigh++;
+        }
+        try {
+            while (bytes > 0) {
+                long part = Math.min(bytes, refillBytesPerPeriod);
+                interrupted |= acquire(part, priority);
+                bytes -= part;
+            }
+        }
+        finally {
+            if (priority == Priority.HIGH) {
+                waitingHigh--;
+                notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // 返回等待期间线程是否被中断，写入不能因为中断而失败
+    private boolean acquire(long bytes, Priority priority)
+    {
+        boolean interrupted = false;
+        while (true) {
+            refill();
+            // 有flush在等待时，低优先级的请求不获取令牌；
+            // 请求拆分之后速度可能被调低，所以有一个周期的令牌就足够，不够的部分记为欠账
+            if (availableBytes >= Math.min(bytes, refillBytesPerPeriod) && (priority == Priority.HIGH || waitingHigh == 0)) {
+                availableBytes -= bytes;
+                totalBytesThrough += bytes;
+                return interrupted;
+            }
+            drained = true;
+
+            long waitNanos = nextRefillNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        if (now < nextRefillNanos) {
+            return;
+        }
+        long periods = (now - nextRefillNanos) / REFILL_PERIOD_NANOS + 1;
+        nextRefillNanos += periods * REFILL_PERIOD_NANOS;
+
+        if (autoTuned) {
+            tunePeriods += periods;
+            if (drained) {
+                drainedPeriods++;
+            }
+            if (tunePeriods >= TUNE_PERIODS) {
+                tune();
+            }
+        }
+        drained = false;
+
+        // 空闲时令牌不会累积，最多允许一个周期的突发
+        availableBytes = Math.min(availableBytes + periods * refillBytesPerPeriod, refillBytesPerPeriod);
+        notifyAll();
+    }
+
+    private void tune()
+    {
+        int drainedPercent = drainedPeriods * 100 / tunePeriods;
+        long rate = bytesPerSecond;
+        if (drainedPercent > TUNE_HIGH_PERCENT) {
+            rate = Math.min(maxBytesPerSecond, rate + Math.max(1, rate * TUNE_STEP_PERCENT / 100));
+        }
+        else if (drainedPercent < TUNE_LOW_PERCENT) {
+            rate = Math.max(maxBytesPerSecond / MIN_RATE_DIVISOR, rate - rate * TUNE_STEP_PERCENT / 100);
+        }
+        setRate(rate);
+        tunePeriods = 0;
+        drainedPeriods = 0;
+    }
+
+    private void setRate(long bytesPerSecond)
+    {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.refillBytesPerPeriod = Math.max(1, this.bytesPerSecond / REFILL_PERIODS_PER_SECOND);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("RateLimiterImpl");
+        sb.append("{bytesPerSecond=").append(bytesPerSecond);
+        sb.append(", maxBytesPerSecond=").append(maxBytesPerSecond);
+        sb.append(", autoTuned=").append(autoTuned);
+        sb.append(", limitCompactionReads=").append(limitCompactionReads);
+        sb.append(", totalBytesThrough=").append(totalBytesThrough);
+        sb.append('}');
+        return sb.toString();
+    }
+}
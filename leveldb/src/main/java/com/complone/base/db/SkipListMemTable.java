@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.impl.*;
+import com.complone.base.include.Slice;
+import com.complone.base.utils.DataUnit;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+
+/**
+ * 默认的memtable实现，memtable的KV数据都存储在ConcurrentSkipListMap中，
+ * 每条记录是一个InternalKey对象加一个Slice，approximateMemoryUsage只统计了key和value的长度。
+ */
+public class SkipListMemTable
+        extends MemTable
+{
+    private final ConcurrentSkipListMap<InternalKey, Slice> table;
+    private final AtomicLong approximateMemoryUsage = new AtomicLong();
+
+    public SkipListMemTable(InternalKeyComparator internalKeyComparator)
+    {
+        table = new ConcurrentSkipListMap<>(internalKeyComparator);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return table.isEmpty();
+    }
+
+    @Override
+    public long approximateMemoryUsage()
+    {
+        return approximateMemoryUsage.get();
+    }
+
+    @Override
+    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value)
+    {
+        requireNonNull(valueType, "valueType is null");
+        requireNonNull(key, "key is null");
+
+        InternalKey internalKey = new InternalKey(key, sequenceNumber, valueType);
+        table.put(internalKey, value);
+
+        // 将在函数的参数中传递的值添加到先前的值,并返回数据类型为long的新更新值。
+        approximateMemoryUsage.addAndGet(key.length() + DataUnit.LONG_UNIT + value.length());
+    }
+
+    @Override
+    public LookupResult get(LookupKey key)
+    {
+        requireNonNull(key, "key is null");
+
+        InternalKey internalKey = key.getInternalKey();
+        // 返回与该键至少大于或等于给定键,如果不存在这样的键的键 - 值映射,则返回null相关联。
+        Map.Entry<InternalKey, Slice> entry = table.ceilingEntry(internalKey);
+        if (entry == null) {
+            return null;
+        }
+
+        InternalKey entryKey = entry.getKey();
+        if (entryKey.getUserKey().equals(key.getUserKey())) {
+            if (entryKey.getValueType() == ValueType.DELETION) {
+                return LookupResult.deleted(key);
+            }
+            else {
+                return LookupResult.ok(key, entry.getValue());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public MemTableIterator iterator()
+    {
+        return new SkipListMemTableIterator();
+    }
+
+    private class SkipListMemTableIterator
+            implements MemTableIterator
+    {
+        // PeekingIterator是自定义的迭代器，是对顶层迭代器Iterator的封装。
+        private PeekingIterator<Map.Entry<InternalKey, Slice>> iterator;
+
+        public SkipListMemTableIterator()
+        {
+            iterator = Iterators.peekingIterator(table.entrySet().iterator());
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public void seekToFirst()
+        {
+            iterator = Iterators.peekingIterator(table.entrySet().iterator());
+        }
+
+        @Override
+        public void seek(InternalKey targetKey)
+        {
+            iterator = Iterators.peekingIterator(table.tailMap(targetKey).entrySet().iterator());
+        }
+
+        @Override
+        public InternalEntry peek()
+        {
+            Map.Entry<InternalKey, Slice> entry = iterator.peek();
+            return new InternalEntry(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public InternalEntry next()
+        {
+            Map.Entry<InternalKey, Slice> entry = iterator.next();
+            return new InternalEntry(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
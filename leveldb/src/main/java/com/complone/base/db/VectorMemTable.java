@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.impl.InternalEntry;
+import com.complone.base.impl.InternalKey;
+import com.complone.base.impl.InternalKeyComparator;
+import com.complone.base.impl.LookupKey;
+import com.complone.base.impl.LookupResult;
+import com.complone.base.impl.ValueType;
+import com.complone.base.include.Slice;
+import com.complone.base.utils.DataUnit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 追加写入的memtable，对应RocksDB中的VectorRep，适合批量导入时只写不读的场景。
+ * 写入只是追加到数组末尾，不做任何比较；变成immutable memtable之后，第一次读取时(通常是flush)排序一次，之后按二分查找。
+ * <p/>
+ * 还在写入时读取的代价很高：get需要扫描所有记录，iterator需要拷贝并排序所有记录。
+ */
+public class VectorMemTable
+        extends MemTable
+{
+    private final Comparator<InternalEntry> entryComparator;
+    private final AtomicLong approximateMemoryUsage = new AtomicLong();
+
+    // 以下两个字段由this保护
+    private final List<InternalEntry> entries = new ArrayList<>();
+    private boolean immutable;
+    // 变成immutable之后第一次读取时排序，之后不再变化
+    private volatile InternalEntry[] sorted;
+
+    public VectorMemTable(final InternalKeyComparator internalKeyComparator)
+    {
+        requireNonNull(internalKeyComparator, "internalKeyComparator is null");
+        this.entryComparator = new Comparator<InternalEntry>()
+        {
+            @Override
+            public int compare(InternalEntry left, InternalEntry right)
+            {
+                return internalKeyComparator.compare(left.getKey(), right.getKey());
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean isEmpty()
+    {
+        if (sorted != null) {
+            return sorted.length == 0;
+        }
+        return entries.isEmpty();
+    }
+
+    @Override
+    public long approximateMemoryUsage()
+    {
+        return approximateMemoryUsage.get();
+    }
+
+    @Override
+    public void add(long sequenceNumber, ValueType valueType, Slice key, Slice value)
+    {
+        requireNonNull(valueType, "valueType is null");
+        requireNonNull(key, "key is null");
+
+        InternalEntry entry = new InternalEntry(new InternalKey(key, sequenceNumber, valueType), value);
+        synchronized (this) {
+            checkState(!immutable, "memtable is immutable");
+            entries.add(entry);
+        }
+        approximateMemoryUsage.addAndGet(key.length() + DataUnit.LONG_UNIT + value.length());
+    }
+
+    @Override
+    public synchronized void markImmutable()
+    {
+        immutable = true;
+    }
+
+    @Override
+    public LookupResult get(LookupKey key)
+    {
+        requireNonNull(key, "key is null");
+
+        InternalEntry entry = ceilingEntry(key.getInternalKey());
+        if (entry == null) {
+            return null;
+        }
+
+        InternalKey entryKey = entry.getKey();
+        if (entryKey.getUserKey().equals(key.getUserKey())) {
+            if (entryKey.getValueType() == ValueType.DELETION) {
+                return LookupResult.deleted(key);
+            }
+            else {
+                return LookupResult.ok(key, entry.getValue());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public MemTableIterator iterator()
+    {
+        return new VectorMemTableIterator(sortedEntries());
+    }
+
+    // 找到 >= key 的最小记录
+    private InternalEntry ceilingEntry(InternalKey key)
+    {
+        InternalEntry[] sorted = this.sorted;
+        if (sorted == null) {
+            synchronized (this) {
+                // 加锁之后重新检查，其他线程可能已经排好序并清空了entries
+                sorted = this.sorted;
+                if (sorted == null) {
+                    return scan(key);
+                }
+            }
+        }
+        int index = ceilingIndex(sorted, key);
+        return index < sorted.length ? sorted[index] : null;
+    }
+
+    // 没有排序时线性扫描，调用者需要持有this的锁
+    private InternalEntry scan(InternalKey key)
+    {
+        InternalEntry target = new InternalEntry(key, Slices.EMPTY_SLICE);
+        InternalEntry result = null;
+        for (InternalEntry entry : entries) {
+            if (entryComparator.compare(entry, target) >= 0 && (result == null || entryComparator.compare(entry, result) < 0)) {
+                result = entry;
+            }
+        }
+        return result;
+    }
+
+    private InternalEntry[] sortedEntries()
+    {
+        InternalEntry[] result = sorted;
+        if (result != null) {
+            return result;
+        }
+        synchronized (this) {
+            if (sorted != null) {
+                return sorted;
+            }
+            result = entries.toArray(new InternalEntry[0]);
+            // 数据量很大时排序比较耗时，使用多个线程排序
+            Arrays.parallelSort(result, entryComparator);
+            if (immutable) {
+                sorted = result;
+                entries.clear();
+            }
+            return result;
+        }
+    }
+
+    private int ceilingIndex(InternalEntry[] entries, InternalKey key)
+    {
+        InternalEntry target = new InternalEntry(key, Slices.EMPTY_SLICE);
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entryComparator.compare(entries[mid], target) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private class VectorMemTableIterator
+            implements MemTableIterator
+    {
+        private final InternalEntry[] entries;
+        private int index;
+
+        public VectorMemTableIterator(InternalEntry[] entries)
+        {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return index < entries.length;
+        }
+
+        @Override
+        public void seekToFirst()
+        {
+            index = 0;
+        }
+
+        @Override
+        public void seek(InternalKey targetKey)
+        {
+            index = ceilingIndex(entries, targetKey);
+        }
+
+        @Override
+        public InternalEntry peek()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entries[index];
+        }
+
+        @Override
+        public InternalEntry next()
+        {
+            InternalEntry entry = peek();
+            index++;
+            return entry;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
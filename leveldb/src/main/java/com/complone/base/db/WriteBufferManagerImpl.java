@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.db;
+
+import com.complone.base.WriteBufferManager;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 多个DB共享的memtable内存预算。每个DB把自己memtable的内存使用报告到这里，
+ * 总量超过预算时，要求active memtable最大的DB把它切换成immutable memtable并flush
+ */
+public class WriteBufferManagerImpl
+        implements WriteBufferManager
+{
+    private final long bufferSize;
+    private final AtomicLong memoryUsage = new AtomicLong();
+    private final Set<Consumer> consumers = Collections.newSetFromMap(new ConcurrentHashMap<Consumer, Boolean>());
+
+    public WriteBufferManagerImpl(long bufferSize)
+    {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public long bufferSize()
+    {
+        return bufferSize;
+    }
+
+    @Override
+    public long memoryUsage()
+    {
+        return memoryUsage.get();
+    }
+
+    public boolean shouldFlush()
+    {
+        return memoryUsage.get() > bufferSize;
+    }
+
+    public void reserveMemory(long bytes)
+    {
+        memoryUsage.addAndGet(bytes);
+    }
+
+    public void freeMemory(long bytes)
+    {
+        memoryUsage.addAndGet(-bytes);
+    }
+
+    public void register(Consumer consumer)
+    {
+        requireNonNull(consumer, "consumer is null");
+        consumers.add(consumer);
+    }
+
+    public void unregister(Consumer consumer)
+    {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * 要求active memtable最大的DB切换memtable
+     */
+    public void flushLargest()
+    {
+        Consumer largest = null;
+        long largestUsage = 0;
+        for (Consumer consumer : consumers) {
+            long usage = consumer.activeMemTableUsage();
+            if (usage > largestUsage) {
+                largest = consumer;
+                largestUsage = usage;
+            }
+        }
+        if (largest != null) {
+            largest.requestFlush();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("WriteBufferManagerImpl");
+        sb.append("{bufferSize=").append(bufferSize);
+        sb.append(", memoryUsage=").append(memoryUsage);
+        sb.append(", consumers=").append(consumers.size());
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * 共享预算的DB
+     */
+    public interface Consumer
+    {
+        // 仍在接受写入的memtable使用的内存
+        long activeMemTableUsage();
+
+        // 尽快把active memtable切换成immutable memtable，不能阻塞
+        void requestFlush();
+    }
+}
@@ -15,15 +15,19 @@ public class Compaction
 {
     private final Version inputVersion;
     private final int level;
+    // 合并结果写入的层，leveled compaction为level + 1
+    private final int outputLevel;
 
     // 每次压缩都要从 "level" 、 "level+1"甚至 "level+2"
     private final List<FileMetaData> levelInputs;
     private final List<FileMetaData> levelUpInputs;
     private final List<FileMetaData> grandparents;
-    private final List<FileMetaData>[] inputs;
+    private final List<List<FileMetaData>> inputs;
 
     private final long maxOutputFileSize;
     private final VersionEdit edit = new VersionEdit();
+    // FIFO compaction只删除输入文件，不读取也不产生输出
+    private final boolean deletionOnly;
 
     // 判读和level1、level2重叠的数据的状态变量
     // (parent == level_ + 1, grandparent == level_ + 2)
@@ -42,18 +46,52 @@ public class Compaction
     // levelPointers holds indices into inputVersion -> levels: our state
     // is that we are positioned at one of the file ranges for each
     // higher level than the ones involved in this compaction (i.e. for
-    // all L >= level_ + 2).
+    // all L > outputLevel).
     private final int[] levelPointers = new int[NUM_LEVELS];
 
     public Compaction(Version inputVersion, int level, List<FileMetaData> levelInputs, List<FileMetaData> levelUpInputs, List<FileMetaData> grandparents)
     {
+        this(inputVersion, level, level + 1, ImmutableList.of(levelInputs, levelUpInputs), grandparents);
+    }
+
+    /**
+     * inputs.get(i)是第level + i层的输入文件，合并结果写入outputLevel层。
+     * universal compaction一次合并多个相邻的sorted run，输入可能跨越多层
+     */
+    public Compaction(Version inputVersion, int level, int outputLevel, List<List<FileMetaData>> inputs, List<FileMetaData> grandparents)
+    {
+        this(inputVersion, level, outputLevel, inputs, grandparents, false);
+    }
+
+    private Compaction(Version inputVersion, int level, int outputLevel, List<List<FileMetaData>> inputs, List<FileMetaData> grandparents, boolean deletionOnly)
+    {
+        checkArgument(outputLevel > level && outputLevel < NUM_LEVELS, "invalid output level %s", outputLevel);
+        checkArgument(inputs.size() == outputLevel - level + 1, "expected inputs for levels %s to %s", level, outputLevel);
         this.inputVersion = inputVersion;
         this.level = level;
-        this.levelInputs = levelInputs;
-        this.levelUpInputs = levelUpInputs;
+        this.outputLevel = outputLevel;
+        this.inputs = ImmutableList.copyOf(inputs);
+        this.levelInputs = this.inputs.get(0);
+        this.levelUpInputs = this.inputs.get(this.inputs.size() - 1);
         this.grandparents = ImmutableList.copyOf(requireNonNull(grandparents, "grandparents is null"));
-        this.maxOutputFileSize = VersionSet.maxFileSizeForLevel(level);
-        this.inputs = new List[] {levelInputs, levelUpInputs};
+        this.maxOutputFileSize = VersionSet.maxFileSizeForLevel(outputLevel);
+        this.deletionOnly = deletionOnly;
+    }
+
+    /**
+     * 直接删除level 0中files的compaction，FIFO compaction使用
+     */
+    public static Compaction newDeletionCompaction(Version inputVersion, List<FileMetaData> files)
+    {
+        return new Compaction(inputVersion, 0, 1, ImmutableList.of(files, ImmutableList.<FileMetaData>of()), ImmutableList.<FileMetaData>of(), true);
+    }
+
+    /**
+     * 子compaction使用，输入文件相同，但shouldStopBefore和isBaseLevelForKey的遍历状态是独立的
+     */
+    public Compaction newSubcompaction()
+    {
+        return new Compaction(inputVersion, level, outputLevel, inputs, grandparents);
     }
 
     public int getLevel()
@@ -61,6 +99,16 @@ public class Compaction
         return level;
     }
 
+    public int getOutputLevel()
+    {
+        return outputLevel;
+    }
+
+    public boolean isDeletionOnly()
+    {
+        return deletionOnly;
+    }
+
     public List<FileMetaData> getLevelInputs()
     {
         return levelInputs;
@@ -79,13 +127,8 @@ public class Compaction
     // 返回第which层的第i个文件
     public FileMetaData input(int which, int i)
     {
-        checkArgument(which == 0 || which == 1, "which must be either 0 or 1");
-        if (which == 0) {
-            return levelInputs.get(i);
-        }
-        else {
-            return levelUpInputs.get(i);
-        }
+        checkArgument(which >= 0 && which < inputs.size(), "which must be between 0 and %s", inputs.size() - 1);
+        return inputs.get(which).get(i);
     }
 
     // 返回压缩过程个最大的文件size
@@ -108,7 +151,9 @@ public class Compaction
          * 2. levelInputs层文件与levelInputs+2层的文件重叠部分不超过10个文件；
          * 3. 当满足这几个条件时，可以将levelInputs层的该文件直接移至slevelInputs+1层
          */
-        return (levelInputs.size() == 1 &&
+        return (!deletionOnly &&
+                outputLevel == level + 1 &&
+                levelInputs.size() == 1 &&
                 levelUpInputs.isEmpty() &&
                 totalFileSize(grandparents) <= MAX_GRAND_PARENT_OVERLAP_BYTES);
 
@@ -126,21 +171,20 @@ public class Compaction
     // 将所有合并过的文件都在version中记录为删除
     public void addInputDeletions(VersionEdit edit)
     {
-        for (FileMetaData input : levelInputs) {
-            edit.deleteFile(level, input.getNumber());
-        }
-        for (FileMetaData input : levelUpInputs) {
-            edit.deleteFile(level + 1, input.getNumber());
+        for (int which = 0; which < inputs.size(); which++) {
+            for (FileMetaData input : inputs.get(which)) {
+                edit.deleteFile(level + which, input.getNumber());
+            }
         }
     }
 
     // Returns true if the information we have available guarantees that
-    // the compaction is producing data in "level+1" for which no data exists
-    // in levels greater than "level+1".
+    // the compaction is producing data in "outputLevel" for which no data exists
+    // in levels greater than "outputLevel".
     public boolean isBaseLevelForKey(Slice userKey)
     {
         UserComparator userComparator = inputVersion.getInternalKeyComparator().getUserComparator();
-        for (int level = this.level + 2; level < NUM_LEVELS; level++) {
+        for (int level = outputLevel + 1; level < NUM_LEVELS; level++) {
             List<FileMetaData> files = inputVersion.getFiles(level);
             while (levelPointers[level] < files.size()) {
                 FileMetaData f = files.get(levelPointers[level]);
@@ -182,7 +226,7 @@ public class Compaction
         }
     }
 
-    public List<FileMetaData>[] getInputs()
+    public List<List<FileMetaData>> getInputs()
     {
         return inputs;
     }
@@ -36,6 +36,21 @@ public final class DbConstants
      */
     public static final int MAX_MEM_COMPACT_LEVEL = 2;
 
+    /**
+     * group commit时合并后的写入大小上限
+     */
+    public static final int MAX_WRITE_GROUP_SIZE = 1 << 20;
+
+    /**
+     * leader的写入小于该值时，合并后的大小最多增加该值，避免小的写入被拖慢
+     */
+    public static final int SMALL_WRITE_SIZE = 128 << 10;
+
+    /**
+     * 并行插入memtable时使用的线程数，调用写入的线程也会插入一段
+     */
+    public static final int MEMTABLE_INSERT_THREADS = 3;
+
     private DbConstants()
     {
     }
@@ -5,23 +5,40 @@ import com.complone.base.utils.DataUnit;
 import com.complone.base.utils.MergingIterator;
 import com.complone.base.utils.Snappy;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.complone.base.db.BloomFilterMemTable;
 import com.complone.base.db.MemTable;
+import com.complone.base.db.InternalMemTableFactory;
+import com.complone.base.db.MemTableFactories;
+import com.complone.base.db.RateLimiterImpl;
 import com.complone.base.db.Slices;
+import com.complone.base.db.WriteBufferManagerImpl;
 import com.complone.base.include.Slice;
 import com.complone.base.include.SliceInput;
 import com.complone.base.include.SliceOutput;
+import com.complone.base.table.BlockCache;
 import com.complone.base.table.BytewiseComparator;
 import com.complone.base.table.CustomUserComparator;
+import com.complone.base.table.CustomUserFilterPolicy;
 import com.complone.base.table.TableBuilder;
 import com.complone.base.table.UserComparator;
+import com.complone.base.table.UserFilterPolicy;
 
 import java.io.*;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
@@ -50,19 +67,62 @@ public class DbImpl
     private final AtomicBoolean shuttingDown = new AtomicBoolean();
     private final ReentrantLock mutex = new ReentrantLock();
     private final Condition backgroundCondition = mutex.newCondition();
+    // 还没有close的快照，按sequence从旧到新排列，由mutex保护
+    private final SnapshotList snapshots = new SnapshotList(mutex);
 
     private final List<Long> pendingOutputs = new ArrayList<>(); // todo
+    // 等待写入的请求队列，队头是当前的leader，由mutex保护
+    private final Deque<Writer> writers = new ArrayDeque<>();
+    // 已经分配了sequence、还没有发布的写入组，按照sequence排序，由mutex保护
+    private final Deque<WriteGroup> insertingGroups = new ArrayDeque<>();
+    // 写入组发布或者全部插入完成时通知
+    private final Condition publishCondition = mutex.newCondition();
+    // 已经分配出去的最大sequence，发布之前不大于versions.getLastSequence()
+    private long lastAllocatedSequence;
 
     private LogWriter log;
 
     private MemTable memTable;
-    private MemTable immutableMemTable;
+    // 等待flush的immutable memtable，从新到旧排列，最多maxWriteBufferNumber - 1个
+    private final Deque<ImmutableMemTable> immutableMemTables = new ArrayDeque<>();
+    // 读路径使用的视图，只在mutex下替换
+    private volatile SuperVersion superVersion;
+    // 读线程发现需要compaction时异步通知，避免在读路径上获取mutex
+    private final AtomicBoolean compactionSignalled = new AtomicBoolean();
 
     private final InternalKeyComparator internalKeyComparator;
+    // 没有设置filter policy时为null
+    private final UserFilterPolicy filterPolicy;
+    private final InternalMemTableFactory memTableFactory;
+
+    // 多个DB共享的memtable内存预算，没有设置时为null
+    private final WriteBufferManagerImpl writeBufferManager;
+    private final WriteBufferManagerImpl.Consumer writeBufferConsumer;
+    // 上一次报告给writeBufferManager的memtable内存，由mutex保护
+    private long reportedMemoryUsage;
+    // writeBufferManager要求切换memtable，下一次写入或者后台任务中切换
+    private final AtomicBoolean memTableSwitchRequested = new AtomicBoolean();
+    private final AtomicBoolean memTableSwitchScheduled = new AtomicBoolean();
+    // flush和compaction写入的限速，没有设置时为null
+    private final RateLimiterImpl rateLimiter;
+    // TTL模式下value的存活时间，0表示没有开启TTL模式
+    private final long ttlMillis;
 
     private volatile Throwable backgroundException;
     private final ExecutorService compactionExecutor;
-    private Future<?> backgroundCompaction;
+    // memtable flush使用单独的高优先级线程，不会排在耗时很长的compaction后面
+    private final ExecutorService flushExecutor;
+    // 大的write batch分段并发插入memtable，没有开启时为null
+    private final ExecutorService memTableInsertExecutor;
+    // 把一个大的compaction拆分成多个子compaction并行执行，没有开启时为null
+    private final ExecutorService subcompactionExecutor;
+    // 正在执行的compaction数量，最多为maxBackgroundCompactions
+    private int backgroundCompactions;
+    // suspendCompactions的次数，大于0时不启动新的compaction
+    private int suspensionCounter;
+    private Future<?> backgroundFlush;
+    // 正在把immutable memtable写成sstable，同一时间只能有一个flush
+    private boolean flushingMemTables;
 
     private ManualCompaction manualCompaction;
 
@@ -90,8 +150,54 @@ public class DbImpl
             userComparator = new BytewiseComparator();
         }
         internalKeyComparator = new InternalKeyComparator(userComparator);
-        memTable = new MemTable(internalKeyComparator);
-        immutableMemTable = null;
+
+        // 内置的BloomFilterPolicy可以直接操作Slice，其他的policy使用CustomUserFilterPolicy包装
+        FilterPolicy policy = options.filterPolicy();
+        if (policy == null) {
+            filterPolicy = null;
+        }
+        else if (policy instanceof UserFilterPolicy) {
+            filterPolicy = new InternalFilterPolicy((UserFilterPolicy) policy);
+        }
+        else {
+            filterPolicy = new InternalFilterPolicy(new CustomUserFilterPolicy(policy));
+        }
+
+        // memtable的实现在leveldb模块中，只能使用MemTableFactories提供的factory
+        MemTableFactory factory = options.memTableFactory();
+        if (factory == null) {
+            memTableFactory = MemTableFactories.skipList();
+        }
+        else if (factory instanceof InternalMemTableFactory) {
+            memTableFactory = (InternalMemTableFactory) factory;
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported memtable factory: " + factory.name());
+        }
+        memTable = newMemTable();
+
+        // 和memtable factory一样，只能使用leveldb模块提供的实现
+        WriteBufferManager manager = options.writeBufferManager();
+        if (manager == null) {
+            writeBufferManager = null;
+        }
+        else if (manager instanceof WriteBufferManagerImpl) {
+            writeBufferManager = (WriteBufferManagerImpl) manager;
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported write buffer manager: " + manager);
+        }
+        RateLimiter limiter = options.rateLimiter();
+        if (limiter == null) {
+            rateLimiter = null;
+        }
+        else if (limiter instanceof RateLimiterImpl) {
+            rateLimiter = (RateLimiterImpl) limiter;
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported rate limiter: " + limiter);
+        }
+        ttlMillis = TimeUnit.SECONDS.toMillis(options.ttlSeconds());
 
         ThreadFactory compactionThreadFactory = new ThreadFactoryBuilder()
                 .setNameFormat("leveldb-compaction-%s")
@@ -106,12 +212,51 @@ public class DbImpl
                     }
                 })
                 .build();
-        compactionExecutor = Executors.newSingleThreadExecutor(compactionThreadFactory);
+        compactionExecutor = Executors.newFixedThreadPool(options.maxBackgroundCompactions(), compactionThreadFactory);
+        flushExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("leveldb-flush-%s")
+                .setPriority(Thread.MAX_PRIORITY)
+                .setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+                {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e)
+                    {
+                        System.out.printf("%s%n", t);
+                        e.printStackTrace();
+                    }
+                })
+                .build());
+
+        if (options.parallelMemTableInsertThreshold() > 0) {
+            memTableInsertExecutor = Executors.newFixedThreadPool(MEMTABLE_INSERT_THREADS, new ThreadFactoryBuilder()
+                    .setNameFormat("leveldb-memtable-insert-%s")
+                    .setDaemon(true)
+                    .build());
+        }
+        else {
+            memTableInsertExecutor = null;
+        }
+
+        if (options.maxSubcompactions() > 1) {
+            // 第一个子compaction在compaction线程中执行
+            subcompactionExecutor = Executors.newFixedThreadPool(options.maxSubcompactions() - 1, new ThreadFactoryBuilder()
+                    .setNameFormat("leveldb-subcompaction-%s")
+                    .setDaemon(true)
+                    .build());
+        }
+        else {
+            subcompactionExecutor = null;
+        }
 
         // 在函数体中，创建TableCache和VersionSet。
         // 为其他预留10个文件，其余的都给TableCache.
         int tableCacheSize = options.maxOpenFiles() - 10;
-        tableCache = new TableCache(databaseDir, tableCacheSize, new InternalUserComparator(internalKeyComparator), options.verifyChecksums());
+        // cacheSize为0时不使用block cache
+        BlockCache blockCache = null;
+        if (options.cacheSize() > 0) {
+            blockCache = new BlockCache(options.cacheSize());
+        }
+        tableCache = new TableCache(databaseDir, tableCacheSize, new InternalUserComparator(internalKeyComparator), options.verifyChecksums(), blockCache, filterPolicy);
 
         // create the version set
 
@@ -135,7 +280,7 @@ public class DbImpl
             }
 
             // 初始化VersionSet
-            versions = new VersionSet(databaseDir, tableCache, internalKeyComparator);
+            versions = new VersionSet(databaseDir, tableCache, internalKeyComparator, options);
 
             // 安装当前版本
             versions.recover();
@@ -179,12 +324,37 @@ public class DbImpl
 
             // apply recovered edits
             versions.logAndApply(edit);
+            installSuperVersion();
+            lastAllocatedSequence = versions.getLastSequence();
 
             // cleanup unused files
             deleteObsoleteFiles();
 
             // schedule compactions
             maybeScheduleCompaction();
+
+            if (writeBufferManager != null) {
+                writeBufferConsumer = new WriteBufferManagerImpl.Consumer()
+                {
+                    @Override
+                    public long activeMemTableUsage()
+                    {
+                        MemTable active = superVersion.getMemTable();
+                        return active.isEmpty() ? 0 : active.approximateMemoryUsage();
+                    }
+
+                    @Override
+                    public void requestFlush()
+                    {
+                        requestMemTableSwitch();
+                    }
+                };
+                writeBufferManager.register(writeBufferConsumer);
+                updateWriteBufferUsage();
+            }
+            else {
+                writeBufferConsumer = null;
+            }
         }
         finally {
             mutex.unlock();
@@ -200,21 +370,34 @@ public class DbImpl
 
         mutex.lock();
         try {
-            while (backgroundCompaction != null) {
+            while (backgroundCompactions > 0 || backgroundFlush != null) {
                 backgroundCondition.awaitUninterruptibly();
             }
+            if (writeBufferManager != null) {
+                writeBufferManager.unregister(writeBufferConsumer);
+                writeBufferManager.freeMemory(reportedMemoryUsage);
+                reportedMemoryUsage = 0;
+            }
         }
         finally {
             mutex.unlock();
         }
 
         compactionExecutor.shutdown();
+        flushExecutor.shutdown();
         try {
             compactionExecutor.awaitTermination(1, TimeUnit.DAYS);
+            flushExecutor.awaitTermination(1, TimeUnit.DAYS);
         }
         catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        if (memTableInsertExecutor != null) {
+            memTableInsertExecutor.shutdown();
+        }
+        if (subcompactionExecutor != null) {
+            subcompactionExecutor.shutdown();
+        }
         try {
             versions.destroy();
         }
@@ -225,6 +408,7 @@ public class DbImpl
         }
         catch (IOException ignored) {
         }
+        superVersion.release();
         tableCache.close();
         dbLock.release();
     }
@@ -289,13 +473,13 @@ public class DbImpl
 
     public void flushMemTable()
     {
+        // force compaction，和写入一起排队，保证切换日志和memtable时没有leader正在写日志
+        write(new Writer(new WriteBatchImpl(), false, true, false, mutex.newCondition()));
+
         mutex.lock();
         try {
-            // force compaction
-            makeRoomForWrite(true);
-
             // todo bg_error code
-            while (immutableMemTable != null) {
+            while (!immutableMemTables.isEmpty()) {
                 backgroundCondition.awaitUninterruptibly();
             }
 
@@ -312,6 +496,11 @@ public class DbImpl
         requireNonNull(start, "start is null");
         requireNonNull(end, "end is null");
 
+        if (options.compactionStyle() == CompactionStyle.FIFO) {
+            // FIFO模式只删除旧文件，不做合并，文件被移到更高的层之后就不会再被删除
+            return;
+        }
+
         mutex.lock();
         try {
             while (this.manualCompaction != null) {
@@ -333,43 +522,211 @@ public class DbImpl
     }
 
     /**
-     * 判断后台线程是否已经启动和一些其他的错误判断，如果未启动则启动后台compaction线程
+     * 判断后台线程是否已经启动和一些其他的错误判断，选出需要执行的compaction交给后台线程。
+     * 输入文件互不冲突的compaction可以同时执行，最多maxBackgroundCompactions个。
+     * 有immutable memtable时同时在flush线程中启动flush
      */
     private void maybeScheduleCompaction()
     {
         checkState(mutex.isHeldByCurrentThread());
 
-        if (backgroundCompaction != null) {
-            // 已经在后台执行compact
+        maybeScheduleFlush();
+
+        if (shuttingDown.get() || suspensionCounter > 0) {
+            // DB 已经被关闭了，或者compaction被暂停
+            return;
         }
-        else if (shuttingDown.get()) {
-            // DB 已经被关闭了
+
+        if (manualCompaction != null) {
+            if (backgroundCompactions > 0) {
+                // 等正在执行的compaction都完成后单独执行manual compaction
+                return;
+            }
+            Compaction compaction = versions.compactRange(manualCompaction.level,
+                    new InternalKey(manualCompaction.begin, MAX_SEQUENCE_NUMBER, VALUE),
+                    new InternalKey(manualCompaction.end, 0, DELETION));
+            if (compaction != null) {
+                manualCompaction.compaction = compaction;
+                scheduleCompaction(compaction);
+                return;
+            }
+            // 范围内没有文件，manual compaction complete
+            manualCompaction = null;
+            backgroundCondition.signalAll();
         }
-        else if (immutableMemTable == null &&
-                manualCompaction == null &&
-                !versions.needsCompaction()) {
-            // No work to be done
+
+        while (backgroundCompactions < options.maxBackgroundCompactions() && versions.needsCompaction()) {
+            Compaction compaction = versions.pickCompaction();
+            if (compaction == null) {
+                // 剩下的compaction都和正在执行的有冲突
+                break;
+            }
+            scheduleCompaction(compaction);
         }
-        else {
-            backgroundCompaction = compactionExecutor.submit(new Callable<Void>()
+    }
+
+    private void scheduleCompaction(final Compaction compaction)
+    {
+        backgroundCompactions++;
+        compactionExecutor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                try {
+                    // 启动后台compact线程
+                    backgroundCall(compaction);
+                }
+                catch (DatabaseShutdownException ignored) {
+                }
+                catch (Throwable e) {
+                    backgroundException = e;
+                }
+                return null;
+            }
+        });
+    }
+
+    private void maybeScheduleFlush()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+
+        if (backgroundFlush != null || shuttingDown.get() || immutableMemTables.isEmpty()) {
+            return;
+        }
+        backgroundFlush = flushExecutor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                try {
+                    backgroundFlushCall();
+                }
+                catch (DatabaseShutdownException ignored) {
+                }
+                catch (Throwable e) {
+                    backgroundException = e;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 读线程使用，在compaction线程中获取mutex后再检查是否需要compaction
+     */
+    private void signalCompaction()
+    {
+        if (shuttingDown.get() || !compactionSignalled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactionExecutor.execute(new Runnable()
             {
                 @Override
-                public Void call()
-                        throws Exception
+                public void run()
                 {
+                    mutex.lock();
                     try {
-                        // 启动后台compact线程
-                        backgroundCall();
+                        compactionSignalled.set(false);
+                        maybeScheduleCompaction();
                     }
-                    catch (DatabaseShutdownException ignored) {
+                    finally {
+                        mutex.unlock();
                     }
-                    catch (Throwable e) {
-                        backgroundException = e;
+                }
+            });
+        }
+        catch (RejectedExecutionException ignored) {
+            // DB 已经被关闭了
+        }
+    }
+
+    /**
+     * 把memtable的内存变化报告给writeBufferManager
+     */
+    private void updateWriteBufferUsage()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+        if (writeBufferManager == null) {
+            return;
+        }
+
+        long usage = memTable.approximateMemoryUsage();
+        for (ImmutableMemTable immutableMemTable : immutableMemTables) {
+            usage += immutableMemTable.memTable.approximateMemoryUsage();
+        }
+        writeBufferManager.reserveMemory(usage - reportedMemoryUsage);
+        reportedMemoryUsage = usage;
+    }
+
+    /**
+     * writeBufferManager调用，可能来自其他DB的写线程，不能阻塞。
+     * 这个DB可能一直没有写入，所以除了等待下一次makeRoomForWrite，还在flush线程中尝试切换
+     */
+    private void requestMemTableSwitch()
+    {
+        memTableSwitchRequested.set(true);
+        if (shuttingDown.get() || !memTableSwitchScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flushExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mutex.lock();
+                    try {
+                        memTableSwitchScheduled.set(false);
+                        // 有写入正在进行，或者immutable memtable的数量已经达到上限，交给makeRoomForWrite处理
+                        if (memTableSwitchRequested.get() && !shuttingDown.get() && hasRoomForImmutableMemTable() && insertingGroups.isEmpty() && !memTable.isEmpty()) {
+                            switchMemTable();
+                        }
+                    }
+                    finally {
+                        mutex.unlock();
                     }
-                    return null;
                 }
             });
         }
+        catch (RejectedExecutionException ignored) {
+            // DB 已经被关闭了
+        }
+    }
+
+    /**
+     * memtable切换或者version变化后，发布新的SuperVersion，并释放旧的
+     */
+    private void installSuperVersion()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+
+        SuperVersion previous = superVersion;
+        List<MemTable> immutables = new ArrayList<>(immutableMemTables.size());
+        for (ImmutableMemTable immutableMemTable : immutableMemTables) {
+            immutables.add(immutableMemTable.memTable);
+        }
+        superVersion = new SuperVersion(memTable, immutables, versions.getCurrent());
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * 获取当前发布的SuperVersion，使用完后必须调用release
+     */
+    private SuperVersion acquireSuperVersion()
+    {
+        while (true) {
+            SuperVersion current = superVersion;
+            if (current.tryRetain()) {
+                return current;
+            }
+            // 获取时恰好被替换并释放了，重新读取
+        }
     }
 
     public void checkBackgroundException()
@@ -384,23 +741,24 @@ public class DbImpl
      * 启动后台compact线程
      * @throws IOException
      */
-    private void backgroundCall()
+    private void backgroundCall(Compaction compaction)
             throws IOException
     {
         mutex.lock();
         try {
-            if (backgroundCompaction == null) {
-                return;
-            }
-
             try {
                 //TODO 缓存取出topicID对应的最大消费位点offset
                 if (!shuttingDown.get()) {
-                    backgroundCompaction();
+                    backgroundCompaction(compaction);
                 }
             }
             finally {
-                backgroundCompaction = null;
+                versions.releaseCompaction(compaction);
+                backgroundCompactions--;
+                // 只有为manual compaction选出的那个compaction完成时才算完成，其他compaction完成时不能清除
+                if (isManualCompaction(compaction)) {
+                    manualCompaction = null;
+                }
             }
         }
         finally {
@@ -419,34 +777,61 @@ public class DbImpl
         }
     }
 
-    // compact的核心实现
-    private void backgroundCompaction()
+    /**
+     * 在flush线程中把immutable memtable写成sstable
+     * @throws IOException
+     */
+    private void backgroundFlushCall()
             throws IOException
     {
-        checkState(mutex.isHeldByCurrentThread());
-
-        compactMemTableInternal();
-
-        Compaction compaction;
-        if (manualCompaction != null) {
-            compaction = versions.compactRange(manualCompaction.level,
-                    new InternalKey(manualCompaction.begin, MAX_SEQUENCE_NUMBER, VALUE),
-                    new InternalKey(manualCompaction.end, 0, DELETION));
+        mutex.lock();
+        try {
+            try {
+                if (!shuttingDown.get()) {
+                    compactMemTableInternal();
+                }
+            }
+            finally {
+                backgroundFlush = null;
+            }
         }
-        else {
-            compaction = versions.pickCompaction();
+        finally {
+            try {
+                // flush期间可能又有memtable被切换，level 0的文件也可能需要compaction
+                maybeScheduleCompaction();
+            }
+            finally {
+                try {
+                    backgroundCondition.signalAll();
+                }
+                finally {
+                    mutex.unlock();
+                }
+            }
         }
+    }
 
-        if (compaction == null) {
-            // no compaction
+    // compact的核心实现，manual compaction执行时没有其他compaction
+    private void backgroundCompaction(Compaction compaction)
+            throws IOException
+    {
+        checkState(mutex.isHeldByCurrentThread());
+
+        if (compaction.isDeletionOnly()) {
+            // FIFO compaction直接删除最旧的文件，不需要合并
+            compaction.addInputDeletions(compaction.getEdit());
+            versions.logAndApply(compaction.getEdit());
+            installSuperVersion();
+            deleteObsoleteFiles();
         }
-        else if (manualCompaction == null && compaction.isTrivialMove()) {
+        else if (!isManualCompaction(compaction) && compaction.isTrivialMove()) {
             // Move file to next level
             checkState(compaction.getLevelInputs().size() == 1);
             FileMetaData fileMetaData = compaction.getLevelInputs().get(0);
             compaction.getEdit().deleteFile(compaction.getLevel(), fileMetaData.getNumber());
-            compaction.getEdit().addFile(compaction.getLevel() + 1, fileMetaData);
+            compaction.getEdit().addFile(compaction.getOutputLevel(), fileMetaData);
             versions.logAndApply(compaction.getEdit());
+            installSuperVersion();
             // log
         }
         else {
@@ -454,11 +839,11 @@ public class DbImpl
             doCompactionWork(compactionState);
             cleanupCompaction(compactionState);
         }
+    }
 
-        // manual compaction complete
-        if (manualCompaction != null) {
-            manualCompaction = null;
-        }
+    private boolean isManualCompaction(Compaction compaction)
+    {
+        return manualCompaction != null && manualCompaction.compaction == compaction;
     }
 
     private void cleanupCompaction(CompactionState compactionState)
@@ -507,7 +892,7 @@ public class DbImpl
 
                 // apply entries to memTable
                 if (memTable == null) {
-                    memTable = new MemTable(internalKeyComparator);
+                    memTable = newMemTable();
                 }
                 writeBatch.forEach(new InsertIntoHandler(memTable, sequenceBegin));
 
@@ -519,14 +904,14 @@ public class DbImpl
 
                 // flush mem table if necessary
                 if (memTable.approximateMemoryUsage() > options.writeBufferSize()) {
-                    writeLevel0Table(memTable, edit, null);
+                    writeLevel0Table(ImmutableList.of(memTable), edit, null);
                     memTable = null;
                 }
             }
 
             // flush mem table
             if (memTable != null && !memTable.isEmpty()) {
-                writeLevel0Table(memTable, edit, null);
+                writeLevel0Table(ImmutableList.of(memTable), edit, null);
             }
 
             return maxSequence;
@@ -545,54 +930,112 @@ public class DbImpl
             throws DBException
     {
         checkBackgroundException();
-        LookupKey lookupKey;
-        mutex.lock();
+        // 必须在获取SuperVersion之前读取sequence：写入先插入memtable再发布sequence，
+        // 之后获取的视图一定包含所有不大于该sequence的数据
+        LookupKey lookupKey = new LookupKey(Slices.wrappedBuffer(key), getSnapshotSequence(options));
+        SuperVersion current = acquireSuperVersion();
         try {
-            SnapshotImpl snapshot = getSnapshot(options);
-            lookupKey = new LookupKey(Slices.wrappedBuffer(key), snapshot.getLastSequence());
+            LookupResult lookupResult = current.getFromMemTables(lookupKey);
+            if (lookupResult == null) {
+                Version version = current.getVersion();
+                lookupResult = version.get(lookupKey, options);
+                // seek次数用完的文件需要compaction，只有leveled compaction会处理
+                if (version.getFileToCompact() != null && this.options.compactionStyle() == CompactionStyle.LEVEL) {
+                    signalCompaction();
+                }
+            }
 
-            LookupResult lookupResult = memTable.get(lookupKey);
             if (lookupResult != null) {
                 Slice value = lookupResult.getValue();
-                if (value == null) {
-                    return null;
-                }
-                return value.getBytes();
-            }
-            if (immutableMemTable != null) {
-                lookupResult = immutableMemTable.get(lookupKey);
-                if (lookupResult != null) {
-                    Slice value = lookupResult.getValue();
-                    if (value == null) {
-                        return null;
-                    }
-                    return value.getBytes();
+                if (value != null) {
+                    return userValue(value, System.currentTimeMillis());
                 }
             }
+            return null;
         }
         finally {
-            mutex.unlock();
+            current.release();
         }
+    }
 
-        LookupResult lookupResult = versions.get(lookupKey);
+    @Override
+    public List<byte[]> multiGet(List<byte[]> keys)
+            throws DBException
+    {
+        return multiGet(keys, new ReadOptions());
+    }
 
-        mutex.lock();
+    @Override
+    public List<byte[]> multiGet(List<byte[]> keys, ReadOptions options)
+            throws DBException
+    {
+        requireNonNull(keys, "keys is null");
+        checkBackgroundException();
+        long lastSequence = getSnapshotSequence(options);
+
+        // 按照user key排序，之后每一层的文件和data block都只需要顺序访问一次
+        final List<LookupKey> lookupKeys = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            lookupKeys.add(new LookupKey(Slices.wrappedBuffer(key), lastSequence));
+        }
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final UserComparator userComparator = internalKeyComparator.getUserComparator();
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return userComparator.compare(lookupKeys.get(a).getUserKey(), lookupKeys.get(b).getUserKey());
+            }
+        });
+        List<LookupKey> sortedKeys = new ArrayList<>(order.length);
+        for (int index : order) {
+            sortedKeys.add(lookupKeys.get(index));
+        }
+
+        LookupResult[] results = new LookupResult[order.length];
+        SuperVersion current = acquireSuperVersion();
         try {
-            if (versions.needsCompaction()) {
-                maybeScheduleCompaction();
+            boolean pending = false;
+            for (int i = 0; i < results.length; i++) {
+                LookupKey lookupKey = sortedKeys.get(i);
+                LookupResult lookupResult = current.getFromMemTables(lookupKey);
+                results[i] = lookupResult;
+                pending |= lookupResult == null;
+            }
+            if (pending) {
+                current.getVersion().get(sortedKeys, results, options);
             }
         }
         finally {
-            mutex.unlock();
+            current.release();
         }
 
-        if (lookupResult != null) {
-            Slice value = lookupResult.getValue();
-            if (value != null) {
-                return value.getBytes();
+        long currentTime = System.currentTimeMillis();
+        byte[][] values = new byte[order.length][];
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null && results[i].getValue() != null) {
+                values[order[i]] = userValue(results[i].getValue(), currentTime);
             }
         }
-        return null;
+        return Arrays.asList(values);
+    }
+
+    /**
+     * 把存储的value转换成返回给用户的value，TTL模式下去掉过期时间，已经过期时返回null
+     */
+    private byte[] userValue(Slice value, long currentTime)
+    {
+        if (ttlMillis == 0) {
+            return value.getBytes();
+        }
+        if (TtlValues.isExpired(value, currentTime)) {
+            return null;
+        }
+        return TtlValues.stripExpiry(value).getBytes();
     }
 
     @Override
@@ -641,46 +1084,262 @@ public class DbImpl
             throws DBException
     {
         checkBackgroundException();
+        if (ttlMillis != 0) {
+            updates = TtlValues.withExpiry(updates, System.currentTimeMillis() + ttlMillis);
+        }
+        Writer writer = new Writer(updates, options.sync(), false, options.snapshot(), mutex.newCondition());
+        write(writer);
+        return writer.snapshot;
+    }
+
+    /**
+     * 写入分为三个阶段：
+     * 1. 排队，队头的leader在mutex下分配sequence，合并写请求；
+     * 2. leader在mutex外写日志，写完后把leader交给下一个队头，下一组可以开始写日志；
+     * 3. 每个writer在mutex外把自己的batch并发插入memtable，插入完成后按照sequence的顺序发布，
+     *    自己的数据可见之后返回。
+     */
+    private void write(Writer writer)
+    {
+        mutex.lock();
+        try {
+            // 排队，直到被之前的leader顺带写入日志，或者自己成为队头
+            writers.add(writer);
+            while (!writer.logged && writers.peekFirst() != writer) {
+                writer.condition.awaitUninterruptibly();
+            }
+            if (!writer.logged) {
+                writeGroup(writer);
+            }
+        }
+        finally {
+            mutex.unlock();
+        }
+
+        if (writer.error == null && writer.batch.size() != 0) {
+            // memtable基于ConcurrentSkipListMap，可以并发插入
+            try {
+                insertIntoMemTable(writer.batch, writer.memTable, writer.sequenceBegin);
+            }
+            catch (RuntimeException e) {
+                // memtable中可能只插入了一部分，之后的写入都拒绝
+                writer.error = e;
+                backgroundException = e;
+            }
+        }
+
         mutex.lock();
         try {
-            long sequenceEnd;
+            writer.group.finishInsert(writer.error != null);
+            publishSequence();
+            while (!writer.group.finished) {
+                publishCondition.awaitUninterruptibly();
+            }
+            if (writer.error == null && !writer.group.published) {
+                // 排在前面的写入失败了，这次写入没有发布
+                writer.error = new BackgroundProcessingException(backgroundException);
+            }
+        }
+        finally {
+            mutex.unlock();
+        }
+
+        if (writer.error != null) {
+            throw writer.error;
+        }
+    }
+
+    /**
+     * 把batch插入memtable。开启了并行插入并且batch足够大时，按照下标分段，
+     * 每段使用自己的起始sequence，调用线程插入第一段，其余的交给线程池，全部完成后返回
+     */
+    private void insertIntoMemTable(final WriteBatchImpl batch, final MemTable memTable, final long sequenceBegin)
+    {
+        int size = batch.size();
+        if (memTableInsertExecutor == null || size < options.parallelMemTableInsertThreshold()) {
+            batch.forEach(new InsertIntoHandler(memTable, sequenceBegin));
+            return;
+        }
+
+        int partSize = (size + MEMTABLE_INSERT_THREADS) / (MEMTABLE_INSERT_THREADS + 1);
+        List<Future<?>> futures = new ArrayList<>(MEMTABLE_INSERT_THREADS);
+        for (int from = partSize; from < size; from += partSize) {
+            final int start = from;
+            final int end = Math.min(size, from + partSize);
+            futures.add(memTableInsertExecutor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    batch.forEach(start, end, new InsertIntoHandler(memTable, sequenceBegin + start));
+                }
+            }));
+        }
+        batch.forEach(0, partSize, new InsertIntoHandler(memTable, sequenceBegin));
+        for (Future<?> future : futures) {
+            Futures.getUnchecked(future);
+        }
+    }
+
+    /**
+     * leader把队列中排在后面的写请求合并成一条日志记录，只写一次日志(sync时只force一次)。
+     * sequence在mutex下分配，日志在mutex外写入，写完后唤醒被合并的writer和新的队头
+     */
+    private void writeGroup(Writer leader)
+    {
+        checkState(mutex.isHeldByCurrentThread());
+
+        List<Writer> group;
+        try {
+            // 之前的写入或者后台任务出错之后不再接受写入
+            checkBackgroundException();
+            makeRoomForWrite(leader.force);
+            group = buildBatchGroup(leader);
+        }
+        catch (RuntimeException e) {
+            group = ImmutableList.of(leader);
+            leader.error = e;
+        }
+
+        // 分配sequence，注册到正在插入的写入组中，保证按顺序发布；出错的写入组不分配sequence
+        long sequenceCount = leader.error == null ? sequenceCount(group) : 0;
+        WriteGroup writeGroup = new WriteGroup(group, lastAllocatedSequence + sequenceCount);
+        insertingGroups.add(writeGroup);
+        long sequenceBegin = lastAllocatedSequence + 1;
+        for (Writer writer : group) {
+            writer.group = writeGroup;
+            writer.memTable = memTable;
+            writer.sequenceBegin = lastAllocatedSequence + 1;
+            if (leader.error == null) {
+                lastAllocatedSequence += writer.batch.size();
+            }
+            writer.sequenceEnd = lastAllocatedSequence;
+        }
+
+        if (leader.error == null) {
+            WriteBatchImpl updates = leader.batch;
+            if (group.size() > 1) {
+                updates = new WriteBatchImpl();
+                for (Writer writer : group) {
+                    updates.append(writer.batch);
+                }
+            }
+
             if (updates.size() != 0) {
-                makeRoomForWrite(false);
+                // 只有leader会写日志，切换日志和memtable之前会等待insertingGroups为空，所以可以在mutex外写日志
+                LogWriter log = this.log;
+                Slice record = writeWriteBatch(updates, sequenceBegin);
+                mutex.unlock();
+                try {
+                    log.addRecord(record, leader.sync);
+                }
+                catch (IOException e) {
+                    leader.error = new RuntimeException("Unable to write log file " + log.getFile(), e);
+                }
+                catch (RuntimeException e) {
+                    leader.error = e;
+                }
+                finally {
+                    mutex.lock();
+                }
+                if (leader.error != null) {
+                    // 日志中可能只写入了一部分，之后的写入不能再追加到这个日志
+                    backgroundException = leader.error;
+                }
+            }
+        }
+
+        // 唤醒已经写完日志的writer，包括leader自己
+        for (Writer writer : group) {
+            checkState(writers.pollFirst() == writer);
+            writer.error = leader.error;
+            writer.logged = true;
+            if (writer != leader) {
+                writer.condition.signal();
+            }
+        }
+
+        // 通知新的队头成为leader
+        Writer next = writers.peekFirst();
+        if (next != null) {
+            next.condition.signal();
+        }
+    }
+
+    private static long sequenceCount(List<Writer> group)
+    {
+        long count = 0;
+        for (Writer writer : group) {
+            count += writer.batch.size();
+        }
+        return count;
+    }
+
+    /**
+     * 按照分配的顺序发布已经完成插入的写入组，更新last sequence，之后读线程就可以看到这些数据。
+     * 需要返回快照的writer在这里注册快照：注册和发布在同一次mutex持有期间完成，
+     * 快照链表保持按sequence递增，之后开始的compaction也一定能看到这个快照。
+     * 出错的写入组不发布，出现backgroundException之后也不再发布任何写入组
+     */
+    private void publishSequence()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+
+        boolean finished = false;
+        while (!insertingGroups.isEmpty() && insertingGroups.peekFirst().isInserted()) {
+            WriteGroup writeGroup = insertingGroups.pollFirst();
+            if (!writeGroup.failed && backgroundException == null) {
+                for (Writer writer : writeGroup.writers) {
+                    if (writer.takeSnapshot) {
+                        writer.snapshot = snapshots.newSnapshot(writer.sequenceEnd);
+                    }
+                }
+                if (writeGroup.sequenceEnd > versions.getLastSequence()) {
+                    versions.setLastSequence(writeGroup.sequenceEnd);
+                }
+                writeGroup.published = true;
+            }
+            writeGroup.finished = true;
+            finished = true;
+        }
+        if (finished) {
+            publishCondition.signalAll();
+        }
+    }
 
-                // 获取last sequence
-                long sequenceBegin = versions.getLastSequence() + 1;
-                // updates.size指的是key-value对
-                sequenceEnd = sequenceBegin + updates.size() - 1;
+    /**
+     * 从队头开始收集可以合并的写请求。
+     * 合并后的大小有上限，leader的batch较小时上限也较小，避免小的写入被大的写入拖慢；
+     * leader不需要sync时，不合并需要sync的写请求
+     */
+    private List<Writer> buildBatchGroup(Writer leader)
+    {
+        checkState(mutex.isHeldByCurrentThread());
 
-                // 修改version的last sequence
-                versions.setLastSequence(sequenceEnd);
+        int size = leader.batch.getApproximateSize();
+        int maxSize = MAX_WRITE_GROUP_SIZE;
+        if (size <= SMALL_WRITE_SIZE) {
+            maxSize = size + SMALL_WRITE_SIZE;
+        }
 
-                // Log write
-                Slice record = writeWriteBatch(updates, sequenceBegin);
-                try {
-                    log.addRecord(record, options.sync());
+        List<Writer> group = new ArrayList<>();
+        for (Writer writer : writers) {
+            if (writer != leader) {
+                if (writer.sync && !leader.sync) {
+                    break;
                 }
-                catch (IOException e) {
-                    throw Throwables.propagate(e);
+                // 强制切换memtable的请求需要自己成为leader
+                if (writer.force) {
+                    break;
+                }
+                size += writer.batch.getApproximateSize();
+                if (size > maxSize) {
+                    break;
                 }
-
-                // 更新 memtable
-                updates.forEach(new InsertIntoHandler(memTable, sequenceBegin));
-            }
-            else {
-                sequenceEnd = versions.getLastSequence();
-            }
-
-            if (options.snapshot()) {
-                return new SnapshotImpl(versions.getCurrent(), sequenceEnd);
-            }
-            else {
-                return null;
             }
+            group.add(writer);
         }
-        finally {
-            mutex.unlock();
-        }
+        return group;
     }
 
     @Override
@@ -700,17 +1359,24 @@ public class DbImpl
     public SeekingIteratorAdapter iterator(ReadOptions options)
     {
         checkBackgroundException();
-        mutex.lock();
+        long lastSequence = getSnapshotSequence(options);
+        SuperVersion current = acquireSuperVersion();
         try {
-            DbIterator rawIterator = internalIterator();
+            DbIterator rawIterator = internalIterator(current, options);
 
             // filter any entries not visible in our snapshot
-            SnapshotImpl snapshot = getSnapshot(options);
-            SnapshotSeekingIterator snapshotIterator = new SnapshotSeekingIterator(rawIterator, snapshot, internalKeyComparator.getUserComparator());
+            SnapshotSeekingIterator snapshotIterator;
+            if (ttlMillis == 0) {
+                snapshotIterator = new SnapshotSeekingIterator(rawIterator, lastSequence, current.getVersion(), internalKeyComparator.getUserComparator());
+            }
+            else {
+                // 迭代期间使用创建时的时间判断过期，保证同一个迭代器的结果一致
+                snapshotIterator = new SnapshotSeekingIterator(rawIterator, lastSequence, current.getVersion(), internalKeyComparator.getUserComparator(), System.currentTimeMillis());
+            }
             return new SeekingIteratorAdapter(snapshotIterator);
         }
         finally {
-            mutex.unlock();
+            current.release();
         }
     }
 
@@ -721,52 +1387,67 @@ public class DbImpl
             @Override
             public DbIterator iterator()
             {
-                return internalIterator();
+                return internalIterator(new ReadOptions());
             }
         };
     }
 
-    DbIterator internalIterator()
+    DbIterator internalIterator(ReadOptions options)
     {
-        mutex.lock();
+        SuperVersion current = acquireSuperVersion();
         try {
-            // merge together the memTable, immutableMemTable, and tables in version set
-            MemTable.MemTableIterator iterator = null;
-            if (immutableMemTable != null) {
-                iterator = immutableMemTable.iterator();
-            }
-            Version current = versions.getCurrent();
-            return new DbIterator(memTable.iterator(), iterator, current.getLevel0Files(), current.getLevelIterators(), internalKeyComparator);
+            return internalIterator(current, options);
         }
         finally {
-            mutex.unlock();
+            current.release();
         }
     }
 
+    private DbIterator internalIterator(SuperVersion current, ReadOptions options)
+    {
+        // merge together the memTable, immutable memtables, and tables in version set
+        List<MemTable.MemTableIterator> immutableIterators = new ArrayList<>(current.getImmutableMemTables().size());
+        for (MemTable immutableMemTable : current.getImmutableMemTables()) {
+            immutableIterators.add(immutableMemTable.iterator());
+        }
+        Version version = current.getVersion();
+        return new DbIterator(current.getMemTable().iterator(), immutableIterators, version.getLevel0Files(options), version.getLevelIterators(options), internalKeyComparator);
+    }
+
     @Override
     public Snapshot getSnapshot()
     {
         checkBackgroundException();
         mutex.lock();
         try {
-            return new SnapshotImpl(versions.getCurrent(), versions.getLastSequence());
+            return snapshots.newSnapshot(versions.getLastSequence());
         }
         finally {
             mutex.unlock();
         }
     }
 
-    private SnapshotImpl getSnapshot(ReadOptions options)
+    private long getSnapshotSequence(ReadOptions options)
     {
-        SnapshotImpl snapshot;
         if (options.snapshot() != null) {
-            snapshot = (SnapshotImpl) options.snapshot();
+            return ((SnapshotImpl) options.snapshot()).getLastSequence();
         }
-        else {
-            snapshot = new SnapshotImpl(versions.getCurrent(), versions.getLastSequence());
-            snapshot.close(); // To avoid holding the snapshot active..
+        return versions.getLastSequence();
+    }
+
+    private boolean hasRoomForImmutableMemTable()
+    {
+        return immutableMemTables.size() < options.maxWriteBufferNumber() - 1;
+    }
+
+    private MemTable newMemTable()
+    {
+        MemTable newMemTable = memTableFactory.newMemTable(internalKeyComparator, options.writeBufferSize());
+        if (options.memTableBloomSizeRatio() > 0) {
+            int filterBytes = Math.max(DataUnit.LONG_UNIT, (int) (options.writeBufferSize() * options.memTableBloomSizeRatio()));
+            newMemTable = new BloomFilterMemTable(newMemTable, filterBytes);
         }
-        return snapshot;
+        return newMemTable;
     }
 
     private void makeRoomForWrite(boolean force)
@@ -774,10 +1455,24 @@ public class DbImpl
         checkState(mutex.isHeldByCurrentThread());
 
         boolean allowDelay = !force;
+        // FIFO模式下所有文件都留在level 0，文件总量由FIFO的容量和年龄上限控制，
+        // level 0的文件数量不会被compaction减少，不能按照它延迟或者停止写入
+        boolean limitLevel0 = options.compactionStyle() != CompactionStyle.FIFO;
+
+        if (writeBufferManager != null) {
+            updateWriteBufferUsage();
+            if (writeBufferManager.shouldFlush()) {
+                writeBufferManager.flushLargest();
+            }
+        }
+        // memtable是空的，切换也不能释放内存
+        if (memTableSwitchRequested.get() && memTable.isEmpty()) {
+            memTableSwitchRequested.set(false);
+        }
 
         while (true) {
 
-            if (allowDelay && versions.numberOfFilesInLevel(0) > L0_SLOWDOWN_WRITES_TRIGGER) {
+            if (allowDelay && limitLevel0 && versions.numberOfFilesInLevel(0) > L0_SLOWDOWN_WRITES_TRIGGER) {
                 /**
                  * 当L0的文件数量要达到阈值的时候，我们每次写入都延迟1ms，
                  * 这样可以为后台的compaction腾出一定的cpu（当后台compaction
@@ -799,58 +1494,85 @@ public class DbImpl
                 // 每次写只允许延迟一次
                 allowDelay = false;
             }
-            else if (!force && memTable.approximateMemoryUsage() <= options.writeBufferSize()) {
+            else if (!force && !memTableSwitchRequested.get() && memTable.approximateMemoryUsage() <= options.writeBufferSize()) {
                 // 当前memtable的占用量未达到阈值
                 break;
             }
-            else if (immutableMemTable != null) {
+            else if (!hasRoomForImmutableMemTable()) {
                 /**
-                 * 上一次memtable的compaction尚未结束，等待后台compaction完成
-                 * 因为compaction的过程为 mem ->immutableMemTable 完成后删除immutableMemTable
+                 * immutable memtable的数量达到上限，之前的memtable还没有flush完，等待后台compaction完成
+                 * 因为compaction的过程为 mem -> immutable memtable 完成后删除已经flush的immutable memtable
                  *
                  * 线程在调用condition.await()后处于await状态，此时调用thread.interrupt()会报错
                  * 但是使用condition.awaitUninterruptibly()后，调用thread.interrupt(0则不会报错
                  */
                 backgroundCondition.awaitUninterruptibly();
             }
-            else if (versions.numberOfFilesInLevel(0) >= L0_STOP_WRITES_TRIGGER) {
+            else if (limitLevel0 && versions.numberOfFilesInLevel(0) >= L0_STOP_WRITES_TRIGGER) {
                 // level 0的文件数量超过阈值，等待后台compaction完成
                 backgroundCondition.awaitUninterruptibly();
             }
+            else if (!insertingGroups.isEmpty()) {
+                // 等待正在插入当前memtable的写入完成，immutable memtable不能再被修改
+                // 等待期间memtable可能已经被切换，醒来后重新检查
+                publishCondition.awaitUninterruptibly();
+            }
             else {
                 // memtable达到阈值，新生成日志和memtable，并将原先的mem转化为imm给后台compact
-                checkState(versions.getPrevLogNumber() == 0);
-
-                // 关闭现在的log文件
-                try {
-                    log.close();
-                }
-                catch (IOException e) {
-                    throw new RuntimeException("Unable to close log file " + log.getFile(), e);
-                }
-
-                // 打开一个新的log文件
-                long logNumber = versions.getNextFileNumber();
-                try {
-                    this.log = Logs.createLogWriter(new File(databaseDir, Filename.logFileName(logNumber)), logNumber);
-                }
-                catch (IOException e) {
-                    throw new RuntimeException("Unable to open new log file " +
-                            new File(databaseDir, Filename.logFileName(logNumber)).getAbsoluteFile(), e);
-                }
-
-                // 将当前的memtable赋值给immutableMemTable，新建memTable
-                immutableMemTable = memTable;
-                memTable = new MemTable(internalKeyComparator);
+                switchMemTable();
 
                 // Do not force another compaction there is space available
                 force = false;
-                //触发后台compaction
-                maybeScheduleCompaction();
             }
         }
     }
 
+    /**
+     * 把当前的memtable转化为immutable memtable，并切换到新的日志文件。
+     * 调用者需要保证没有immutable memtable，并且没有正在插入memtable的写入
+     */
+    private void switchMemTable()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+        checkState(hasRoomForImmutableMemTable(), "too many immutable memtables");
+        checkState(insertingGroups.isEmpty(), "memtable is being written");
+        checkState(versions.getPrevLogNumber() == 0);
+
+        // 关闭现在的log文件，immutable memtable flush之前这个文件都不能删除
+        // 失败之后当前的log已经不能再写入，记录为backgroundException，拒绝之后的写入
+        long memTableLogNumber = log.getFileNumber();
+        try {
+            log.close();
+        }
+        catch (IOException e) {
+            RuntimeException error = new RuntimeException("Unable to close log file " + log.getFile(), e);
+            backgroundException = error;
+            throw error;
+        }
+
+        // 打开一个新的log文件
+        long logNumber = versions.getNextFileNumber();
+        try {
+            this.log = Logs.createLogWriter(new File(databaseDir, Filename.logFileName(logNumber)), logNumber);
+        }
+        catch (IOException e) {
+            RuntimeException error = new RuntimeException("Unable to open new log file " +
+                    new File(databaseDir, Filename.logFileName(logNumber)).getAbsoluteFile(), e);
+            backgroundException = error;
+            throw error;
+        }
+
+        // 将当前的memtable放到immutable memtable队列中，新建memTable
+        memTable.markImmutable();
+        immutableMemTables.addFirst(new ImmutableMemTable(memTable, memTableLogNumber));
+        memTable = newMemTable();
+        installSuperVersion();
+        memTableSwitchRequested.set(false);
+
+        //触发后台compaction
+        maybeScheduleCompaction();
+    }
+
     public void compactMemTable()
             throws IOException
     {
@@ -864,60 +1586,107 @@ public class DbImpl
     }
 
     /**
-     * immutableMemTable转换为sstable
+     * 所有等待flush的immutable memtable合并转换为一个sstable
      * @throws IOException
      */
     private void compactMemTableInternal()
             throws IOException
     {
         checkState(mutex.isHeldByCurrentThread());
-        // 如果immutableMemTable不存在，则直接返回
-        if (immutableMemTable == null) {
+        // flush线程和compactMemTable()可能同时调用，等待正在进行的flush完成
+        while (flushingMemTables) {
+            backgroundCondition.awaitUninterruptibly();
+        }
+        // 如果没有immutable memtable，则直接返回
+        if (immutableMemTables.isEmpty()) {
             return;
         }
 
+        flushingMemTables = true;
         try {
-            // 将immutableMemTable转换为sstable
+            // flush期间会释放mutex，新的immutable memtable会加到队头，这次只flush现在队列中的
+            List<MemTable> flushing = new ArrayList<>(immutableMemTables.size());
+            for (ImmutableMemTable immutableMemTable : immutableMemTables) {
+                flushing.add(immutableMemTable.memTable);
+            }
             VersionEdit edit = new VersionEdit();
             Version base = versions.getCurrent();
-            writeLevel0Table(immutableMemTable, edit, base);
+            writeLevel0Table(flushing, edit, base);
 
             if (shuttingDown.get()) {
                 throw new DatabaseShutdownException("Database shutdown during memtable compaction");
             }
 
-            // 替换immutableMemTable
+            // 还没有flush的immutable memtable对应的日志文件需要保留，没有的话只保留当前的日志文件
+            long logNumber = log.getFileNumber();
+            Iterator<ImmutableMemTable> remaining = immutableMemTables.iterator();
+            for (int i = flushing.size(); i < immutableMemTables.size(); i++) {
+                logNumber = remaining.next().logNumber;
+            }
             edit.setPreviousLogNumber(0);
-            edit.setLogNumber(log.getFileNumber());  // Earlier logs no longer needed
+            edit.setLogNumber(logNumber);  // Earlier logs no longer needed
             versions.logAndApply(edit);
 
-            immutableMemTable = null;
+            for (int i = 0; i < flushing.size(); i++) {
+                immutableMemTables.removeLast();
+            }
+            installSuperVersion();
+            updateWriteBufferUsage();
 
             deleteObsoleteFiles();
         }
         finally {
+            flushingMemTables = false;
             // 唤醒所有的等待线程
             backgroundCondition.signalAll();
         }
     }
     // Minor Compaction将memtable生成一个level 0文件
-    private void writeLevel0Table(MemTable mem, VersionEdit edit, Version base)
+    private void writeLevel0Table(List<MemTable> mems, VersionEdit edit, Version base)
             throws IOException
     {
         checkState(mutex.isHeldByCurrentThread());
 
         // 跳过空的memtable
-        if (mem.isEmpty()) {
+        final List<MemTable> nonEmpty = new ArrayList<>(mems.size());
+        for (MemTable mem : mems) {
+            if (!mem.isEmpty()) {
+                // 恢复日志时memtable没有经过makeRoomForWrite，在这里标记
+                mem.markImmutable();
+                nonEmpty.add(mem);
+            }
+        }
+        if (nonEmpty.isEmpty()) {
             return;
         }
 
+        // 多个memtable时归并成一个有序的输入
+        SeekingIterable<InternalKey, Slice> data;
+        if (nonEmpty.size() == 1) {
+            data = nonEmpty.get(0);
+        }
+        else {
+            data = new SeekingIterable<InternalKey, Slice>()
+            {
+                @Override
+                public SeekingIterator<InternalKey, Slice> iterator()
+                {
+                    List<MemTable.MemTableIterator> iterators = new ArrayList<>(nonEmpty.size());
+                    for (MemTable mem : nonEmpty) {
+                        iterators.add(mem.iterator());
+                    }
+                    return new MergingIterator(iterators, internalKeyComparator);
+                }
+            };
+        }
+
         // 产生一个新的file number，用于产生新的sstable
         long fileNumber = versions.getNextFileNumber();
         pendingOutputs.add(fileNumber);
         mutex.unlock();
         FileMetaData meta;
         try {
-            meta = buildTable(mem, fileNumber);
+            meta = buildTable(data, fileNumber);
         }
         finally {
             mutex.lock();
@@ -931,7 +1700,9 @@ public class DbImpl
         if (meta != null && meta.getFileSize() > 0) {
             Slice minUserKey = meta.getSmallest().getUserKey();
             Slice maxUserKey = meta.getLargest().getUserKey();
-            if (base != null) {
+            // compaction线程正在执行时，更高level的文件可能正在被合并，只放到level 0。
+            // universal compaction中每个level 0的文件都是一个sorted run，也只放到level 0
+            if (base != null && backgroundCompactions == 0 && options.compactionStyle() == CompactionStyle.LEVEL) {
                 level = base.pickLevelForMemTableOutput(minUserKey, maxUserKey);
             }
             edit.addFile(level, meta);
@@ -947,7 +1718,8 @@ public class DbImpl
             InternalKey largest = null;
             FileChannel channel = new FileOutputStream(file).getChannel();
             try {
-                TableBuilder tableBuilder = new TableBuilder(options, channel, new InternalUserComparator(internalKeyComparator));
+                // flush优先于compaction获取写入的令牌
+                TableBuilder tableBuilder = new TableBuilder(options, channel, new InternalUserComparator(internalKeyComparator), filterPolicy, rateLimiter, RateLimiterImpl.Priority.HIGH);
 
                 for (Map.Entry<InternalKey, Slice> entry : data) {
                     // update keys
@@ -979,8 +1751,6 @@ public class DbImpl
             // verify table can be opened
             tableCache.newIterator(fileMetaData);
 
-            pendingOutputs.remove(fileNumber);
-
             return fileMetaData;
 
         }
@@ -998,104 +1768,309 @@ public class DbImpl
         checkArgument(compactionState.builder == null);
         checkArgument(compactionState.outfile == null);
 
-        // 将snapshot相关的内容记录到compact信息中
-        compactionState.smallestSnapshot = versions.getLastSequence();
+        // 将snapshot相关的内容记录到compact信息中，compaction期间新建的快照只能看到最新的版本，不影响结果
+        compactionState.snapshots = snapshots.getSequences();
+
+        List<Slice> boundaries = subcompactionBoundaries(compactionState.compaction);
 
         // 加锁
         mutex.unlock();
         try {
-            MergingIterator iterator = versions.makeInputIterator(compactionState.compaction);
+            if (boundaries.isEmpty()) {
+                processCompactionRange(compactionState, null, null);
+            }
+            else {
+                runSubcompactions(compactionState, boundaries);
+            }
+        }
+        finally {
+            mutex.lock();
+        }
 
-            Slice currentUserKey = null;
-            boolean hasCurrentUserKey = false;
+        // todo port CompactionStats code
 
-            long lastSequenceForKey = MAX_SEQUENCE_NUMBER;
-            while (iterator.hasNext() && !shuttingDown.get()) {
-                // always give priority to compacting the current mem table
-                mutex.lock();
-                try {
-                    compactMemTableInternal();
-                }
-                finally {
-                    mutex.unlock();
+        installCompactionResults(compactionState);
+    }
+
+    /**
+     * level 0的compaction按照输入文件的边界把user key分成多个范围，每个范围的数据量大约为一个输出文件以上。
+     * 返回范围之间的分界点，不需要拆分时返回空
+     */
+    private List<Slice> subcompactionBoundaries(Compaction compaction)
+    {
+        if (subcompactionExecutor == null || compaction.getLevel() != 0) {
+            return ImmutableList.of();
+        }
+
+        long totalBytes = 0;
+        TreeSet<Slice> keys = new TreeSet<>(internalKeyComparator.getUserComparator());
+        for (List<FileMetaData> inputs : compaction.getInputs()) {
+            totalBytes += Compaction.totalFileSize(inputs);
+            for (FileMetaData input : inputs) {
+                keys.add(input.getSmallest().getUserKey());
+                keys.add(input.getLargest().getUserKey());
+            }
+        }
+        int subcompactions = (int) Math.min(options.maxSubcompactions(), totalBytes / compaction.getMaxOutputFileSize());
+        if (subcompactions <= 1 || keys.size() <= subcompactions) {
+            return ImmutableList.of();
+        }
+
+        // 从排好序的文件边界中等间隔地选取分界点，第一个key之前没有数据，不作为分界点
+        List<Slice> sortedKeys = new ArrayList<>(keys);
+        List<Slice> boundaries = new ArrayList<>(subcompactions - 1);
+        for (int i = 1; i < subcompactions; i++) {
+            boundaries.add(sortedKeys.get(i * sortedKeys.size() / subcompactions));
+        }
+        return boundaries;
+    }
+
+    /**
+     * 每个范围使用自己的输入iterator和输出文件，第一个范围在当前线程中执行，其余的交给subcompactionExecutor。
+     * 全部完成后按照key的顺序把输出文件合并到compactionState中，和不拆分时一样在一个VersionEdit中安装
+     */
+    private void runSubcompactions(CompactionState compactionState, List<Slice> boundaries)
+            throws IOException
+    {
+        List<CompactionState> subcompactions = new ArrayList<>(boundaries.size() + 1);
+        for (int i = 0; i <= boundaries.size(); i++) {
+            CompactionState subcompaction = new CompactionState(compactionState.compaction.newSubcompaction());
+            subcompaction.snapshots = compactionState.snapshots;
+            subcompactions.add(subcompaction);
+        }
+
+        List<Future<?>> futures = new ArrayList<>(boundaries.size());
+        for (int i = 1; i < subcompactions.size(); i++) {
+            final CompactionState subcompaction = subcompactions.get(i);
+            final Slice begin = boundaries.get(i - 1);
+            final Slice end = i < boundaries.size() ? boundaries.get(i) : null;
+            futures.add(subcompactionExecutor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                        throws IOException
+                {
+                    processCompactionRange(subcompaction, begin, end);
+                    return null;
                 }
+            }));
+        }
 
-                InternalKey key = iterator.peek().getKey();
-                if (compactionState.compaction.shouldStopBefore(key) && compactionState.builder != null) {
-                    finishCompactionOutputFile(compactionState);
+        Throwable failure = null;
+        try {
+            processCompactionRange(subcompactions.get(0), null, boundaries.get(0));
+        }
+        catch (Throwable e) {
+            failure = e;
+        }
+        // 出错时也要等其他范围结束，它们的输出文件需要记录下来
+        for (Future<?> future : futures) {
+            try {
+                Futures.getUnchecked(future);
+            }
+            catch (UncheckedExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
                 }
+            }
+        }
 
-                // Handle key/value, add to state, etc.
-                boolean drop = false;
-                // todo if key doesn't parse (it is corrupted),
-                if (false /*!ParseInternalKey(key, &ikey)*/) {
-                    // do not hide error keys
-                    currentUserKey = null;
-                    hasCurrentUserKey = false;
-                    lastSequenceForKey = MAX_SEQUENCE_NUMBER;
+        mutex.lock();
+        try {
+            for (CompactionState subcompaction : subcompactions) {
+                compactionState.outputs.addAll(subcompaction.outputs);
+                compactionState.totalBytes += subcompaction.totalBytes;
+                if (subcompaction.builder != null) {
+                    subcompaction.builder.abandon();
                 }
-                else {
-                    if (!hasCurrentUserKey || internalKeyComparator.getUserComparator().compare(key.getUserKey(), currentUserKey) != 0) {
-                        // First occurrence of this user key
-                        currentUserKey = key.getUserKey();
-                        hasCurrentUserKey = true;
-                        lastSequenceForKey = MAX_SEQUENCE_NUMBER;
-                    }
+            }
+        }
+        finally {
+            mutex.unlock();
+        }
 
-                    if (lastSequenceForKey <= compactionState.smallestSnapshot) {
-                        // Hidden by an newer entry for same user key
-                        drop = true; // (A)
-                    }
-                    else if (key.getValueType() == DELETION &&
-                            key.getSequenceNumber() <= compactionState.smallestSnapshot &&
-                            compactionState.compaction.isBaseLevelForKey(key.getUserKey())) {
-                        // For this user key:
-                        // (1) there is no data in higher levels
-                        // (2) data in lower levels will have larger sequence numbers
-                        // (3) data in layers that are being compacted here and have
-                        //     smaller sequence numbers will be dropped in the next
-                        //     few iterations of this loop (by rule (A) above).
-                        // Therefore this deletion marker is obsolete and can be dropped.
-                        drop = true;
-                    }
+        if (failure != null) {
+            Throwables.throwIfInstanceOf(failure, IOException.class);
+            Throwables.throwIfUnchecked(failure);
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * 合并compaction中user key在[begin, end)之间的数据，begin和end为null时表示不限制。
+     * 调用时不持有mutex
+     */
+    private void processCompactionRange(CompactionState compactionState, Slice begin, Slice end)
+            throws IOException
+    {
+        MergingIterator iterator = versions.makeInputIterator(compactionState.compaction);
+        if (begin != null) {
+            iterator.seek(new InternalKey(begin, MAX_SEQUENCE_NUMBER, VALUE));
+        }
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        // 读取的数据攒够一个block再向rateLimiter申请
+        RateLimiterImpl readLimiter = rateLimiter != null && rateLimiter.limitCompactionReads() ? rateLimiter : null;
+        long unchargedReadBytes = 0;
+        CompactionFilter compactionFilter = options.compactionFilter();
+        long currentTime = System.currentTimeMillis();
+
+        Slice currentUserKey = null;
+        boolean hasCurrentUserKey = false;
+
+        // 同一个user key上一条记录所在的快照区间，-1表示还没有遇到
+        int lastStripeForKey = -1;
+        // memtable的flush在单独的flush线程中进行，这里不需要再检查
+        while (iterator.hasNext() && !shuttingDown.get()) {
+            InternalKey key = iterator.peek().getKey();
+            if (end != null && userComparator.compare(key.getUserKey(), end) >= 0) {
+                break;
+            }
+            if (readLimiter != null) {
+                unchargedReadBytes += key.getUserKey().length() + DataUnit.LONG_UNIT + iterator.peek().getValue().length();
+                if (unchargedReadBytes >= options.blockSize()) {
+                    readLimiter.request(unchargedReadBytes, RateLimiterImpl.Priority.LOW);
+                    unchargedReadBytes = 0;
+                }
+            }
+            if (compactionState.compaction.shouldStopBefore(key) && compactionState.builder != null) {
+                finishCompactionOutputFile(compactionState);
+            }
 
-                    lastSequenceForKey = key.getSequenceNumber();
+            // Handle key/value, add to state, etc.
+            Slice value = iterator.peek().getValue();
+            boolean drop = false;
+            // todo if key doesn't parse (it is corrupted),
+            if (false /*!ParseInternalKey(key, &ikey)*/) {
+                // do not hide error keys
+                currentUserKey = null;
+                hasCurrentUserKey = false;
+                lastStripeForKey = -1;
+            }
+            else {
+                if (!hasCurrentUserKey || internalKeyComparator.getUserComparator().compare(key.getUserKey(), currentUserKey) != 0) {
+                    // First occurrence of this user key
+                    currentUserKey = key.getUserKey();
+                    hasCurrentUserKey = true;
+                    lastStripeForKey = -1;
                 }
 
-                if (!drop) {
-                    // Open output file if necessary
-                    if (compactionState.builder == null) {
-                        openCompactionOutputFile(compactionState);
-                    }
-                    if (compactionState.builder.getEntryCount() == 0) {
-                        compactionState.currentSmallest = key;
+                int stripe = snapshotStripe(compactionState.snapshots, key.getSequenceNumber());
+                if (stripe == lastStripeForKey) {
+                    // Hidden by an newer entry for same user key that every snapshot
+                    // seeing this entry sees as well
+                    drop = true; // (A)
+                }
+                else if (key.getValueType() == DELETION &&
+                        stripe == 0 &&
+                        compactionState.compaction.isBaseLevelForKey(key.getUserKey())) {
+                    // For this user key:
+                    // (1) there is no data in higher levels
+                    // (2) data in lower levels will have larger sequence numbers
+                    // (3) data in layers that are being compacted here and have
+                    //     smaller sequence numbers will be dropped in the next
+                    //     few iterations of this loop (by rule (A) above).
+                    // Therefore this deletion marker is obsolete and can be dropped.
+                    drop = true;
+                }
+                else if ((compactionFilter != null || ttlMillis != 0) && key.getValueType() == VALUE && stripe == compactionState.snapshots.length) {
+                    // 没有快照能看到这条记录，过期的value直接删除，其余的由compaction filter决定保留、删除还是替换value
+                    Slice newValue = filterValue(compactionState.compaction.getLevel(), key.getUserKey(), value, compactionFilter, currentTime);
+                    if (newValue == null) {
+                        if (compactionState.snapshots.length == 0 && compactionState.compaction.isBaseLevelForKey(key.getUserKey())) {
+                            drop = true;
+                        }
+                        else {
+                            // 更低的层还有这个key的旧版本，或者快照还需要这次compaction中更旧的版本，
+                            // 直接丢弃会让旧版本重新可见，需要写入删除标记把它们覆盖掉
+                            key = new InternalKey(key.getUserKey(), key.getSequenceNumber(), DELETION);
+                            value = Slices.EMPTY_SLICE;
+                        }
                     }
-                    compactionState.currentLargest = key;
-                    compactionState.builder.add(key.encode(), iterator.peek().getValue());
-
-                    // Close output file if it is big enough
-                    if (compactionState.builder.getFileSize() >=
-                            compactionState.compaction.getMaxOutputFileSize()) {
-                        finishCompactionOutputFile(compactionState);
+                    else {
+                        value = newValue;
                     }
                 }
-                iterator.next();
+
+                lastStripeForKey = stripe;
             }
 
-            if (shuttingDown.get()) {
-                throw new DatabaseShutdownException("DB shutdown during compaction");
+            if (!drop) {
+                // Open output file if necessary
+                if (compactionState.builder == null) {
+                    openCompactionOutputFile(compactionState);
+                }
+                if (compactionState.builder.getEntryCount() == 0) {
+                    compactionState.currentSmallest = key;
+                }
+                compactionState.currentLargest = key;
+                compactionState.builder.add(key.encode(), value);
+
+                // Close output file if it is big enough
+                if (compactionState.builder.getFileSize() >=
+                        compactionState.compaction.getMaxOutputFileSize()) {
+                    finishCompactionOutputFile(compactionState);
+                }
             }
-            if (compactionState.builder != null) {
-                finishCompactionOutputFile(compactionState);
+            iterator.next();
+        }
+
+        if (shuttingDown.get()) {
+            throw new DatabaseShutdownException("DB shutdown during compaction");
+        }
+        if (compactionState.builder != null) {
+            finishCompactionOutputFile(compactionState);
+        }
+    }
+
+    /**
+     * 返回compaction之后的value，返回null表示删除这个key。
+     * TTL模式下compaction filter看到的是去掉过期时间的value，替换的value保留原来的过期时间
+     */
+    private Slice filterValue(int level, Slice userKey, Slice value, CompactionFilter compactionFilter, long currentTime)
+    {
+        Slice existingValue = value;
+        if (ttlMillis != 0) {
+            if (TtlValues.isExpired(value, currentTime)) {
+                return null;
             }
+            existingValue = TtlValues.stripExpiry(value);
         }
-        finally {
-            mutex.lock();
+        if (compactionFilter == null) {
+            return value;
         }
 
-        // todo port CompactionStats code
+        byte[] existingBytes = existingValue.getBytes();
+        byte[] newBytes = compactionFilter.filter(level, userKey.getBytes(), existingBytes);
+        if (newBytes == null) {
+            return null;
+        }
+        if (newBytes == existingBytes) {
+            return value;
+        }
+        if (ttlMillis != 0) {
+            return TtlValues.appendExpiry(Slices.wrappedBuffer(newBytes), TtlValues.getExpiry(value));
+        }
+        return Slices.wrappedBuffer(newBytes);
+    }
 
-        installCompactionResults(compactionState);
+    /**
+     * 记录所在的快照区间：第一个sequence不小于记录的快照的下标，比所有快照都新时为snapshots.length。
+     * 同一个区间内的快照看到的都是这个区间内最新的那个版本，更旧的版本可以删除
+     */
+    private static int snapshotStripe(long[] snapshots, long sequence)
+    {
+        int low = 0;
+        int high = snapshots.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (snapshots[mid] < sequence) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
     }
 
     private void openCompactionOutputFile(CompactionState compactionState)
@@ -1115,7 +2090,7 @@ public class DbImpl
 
             File file = new File(databaseDir, Filename.tableFileName(fileNumber));
             compactionState.outfile = new FileOutputStream(file).getChannel();
-            compactionState.builder = new TableBuilder(options, compactionState.outfile, new InternalUserComparator(internalKeyComparator));
+            compactionState.builder = new TableBuilder(options, compactionState.outfile, new InternalUserComparator(internalKeyComparator), filterPolicy, rateLimiter, RateLimiterImpl.Priority.LOW);
         }
         finally {
             mutex.unlock();
@@ -1164,14 +2139,15 @@ public class DbImpl
 
         // Add compaction outputs
         compact.compaction.addInputDeletions(compact.compaction.getEdit());
-        int level = compact.compaction.getLevel();
+        int level = compact.compaction.getOutputLevel();
         for (FileMetaData output : compact.outputs) {
-            compact.compaction.getEdit().addFile(level + 1, output);
+            compact.compaction.getEdit().addFile(level, output);
             pendingOutputs.remove(output.getNumber());
         }
 
         try {
             versions.logAndApply(compact.compaction.getEdit());
+            installSuperVersion();
             deleteObsoleteFiles();
         }
         catch (IOException e) {
@@ -1226,7 +2202,8 @@ public class DbImpl
 
         private final List<FileMetaData> outputs = new ArrayList<>();
 
-        private long smallestSnapshot;
+        // 所有活跃快照的sequence，从旧到新排列
+        private long[] snapshots;
 
         // State kept for output being generated
         private FileChannel outfile;
@@ -1251,11 +2228,88 @@ public class DbImpl
         }
     }
 
+    // 排队等待写入的请求
+    private static class Writer
+    {
+        private final WriteBatchImpl batch;
+        private final boolean sync;
+        // 强制切换memtable，没有数据需要写入
+        private final boolean force;
+        // 写入完成后返回一个能看到这次写入的快照
+        private final boolean takeSnapshot;
+        private final Condition condition;
+        // 以下字段由leader在mutex下设置
+        private boolean logged;
+        private WriteGroup group;
+        private MemTable memTable;
+        private long sequenceBegin;
+        private long sequenceEnd;
+        private RuntimeException error;
+        // 发布时在mutex下注册
+        private SnapshotImpl snapshot;
+
+        private Writer(WriteBatchImpl batch, boolean sync, boolean force, boolean takeSnapshot, Condition condition)
+        {
+            this.batch = batch;
+            this.sync = sync;
+            this.force = force;
+            this.takeSnapshot = takeSnapshot;
+            this.condition = condition;
+        }
+    }
+
+    // 一次写入日志的一组writer，所有writer插入memtable之后才能发布
+    private static class WriteGroup
+    {
+        private final List<Writer> writers;
+        private final long sequenceEnd;
+        private int pendingInserts;
+        // 有writer写日志或者插入memtable失败
+        private boolean failed;
+        // 已经按顺序处理完，published表示数据已经可见
+        private boolean finished;
+        private boolean published;
+
+        private WriteGroup(List<Writer> writers, long sequenceEnd)
+        {
+            this.writers = writers;
+            this.pendingInserts = writers.size();
+            this.sequenceEnd = sequenceEnd;
+        }
+
+        private void finishInsert(boolean failed)
+        {
+            checkState(pendingInserts > 0, "all inserts of the group have finished");
+            pendingInserts--;
+            this.failed |= failed;
+        }
+
+        private boolean isInserted()
+        {
+            return pendingInserts == 0;
+        }
+    }
+
+    private static class ImmutableMemTable
+    {
+        private final MemTable memTable;
+        // 写入这个memtable的日志文件
+        private final long logNumber;
+
+        private ImmutableMemTable(MemTable memTable, long logNumber)
+        {
+            this.memTable = memTable;
+            this.logNumber = logNumber;
+        }
+    }
+
     private static class ManualCompaction
     {
         private final int level;
         private final Slice begin;
         private final Slice end;
+        // 为这次manual compaction选出的compaction，调度之后由mutex保护
+        private Compaction compaction;
 
         private ManualCompaction(int level, Slice begin, Slice end)
         {
@@ -1367,44 +2421,42 @@ public class DbImpl
         }
     }
 
-    private final Object suspensionMutex = new Object();
-    private int suspensionCounter;
-
+    /**
+     * compaction线程有多个，不再通过占住compaction线程来暂停，而是不再启动新的compaction并等待正在执行的完成
+     */
     @Override
     public void suspendCompactions()
             throws InterruptedException
     {
-        compactionExecutor.execute(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    synchronized (suspensionMutex) {
-                        suspensionCounter++;
-                        suspensionMutex.notifyAll();
-                        while (suspensionCounter > 0 && !compactionExecutor.isShutdown()) {
-                            suspensionMutex.wait(500);
-                        }
-                    }
-                }
-                catch (InterruptedException e) {
+        mutex.lock();
+        try {
+            suspensionCounter++;
+            try {
+                while (backgroundCompactions > 0) {
+                    backgroundCondition.await();
                 }
             }
-        });
-        synchronized (suspensionMutex) {
-            while (suspensionCounter < 1) {
-                suspensionMutex.wait();
+            catch (InterruptedException e) {
+                suspensionCounter--;
+                maybeScheduleCompaction();
+                throw e;
             }
         }
+        finally {
+            mutex.unlock();
+        }
     }
 
     @Override
     public void resumeCompactions()
     {
-        synchronized (suspensionMutex) {
+        mutex.lock();
+        try {
             suspensionCounter--;
-            suspensionMutex.notifyAll();
+            maybeScheduleCompaction();
+        }
+        finally {
+            mutex.unlock();
         }
     }
 
@@ -19,8 +19,8 @@ public final class DbIterator extends
     /**当前读取的memtable数据行 **/
     private final MemTableIterator memTableIterator;
 
-    /**多层compact之后的memtable数据行 **/
-    private final MemTableIterator immutableMemTableIterator;
+    /**等待flush的immutable memtable，从新到旧排列 **/
+    private final List<MemTableIterator> immutableMemTableIterators;
 
     /** 待刷写memtable的多层表**/
     private final List<InternalTableIterator> level0Files;
@@ -28,25 +28,28 @@ public final class DbIterator extends
     /**对每层表进行合并操作的数据迭代器 **/
     private final List<LevelIterator> levels;
 
-    private int heapSize;
-
+    /**按照下一个元素排序的小顶堆，heap[0]是当前最小的key **/
+    private final ComparableIterator[] heap;
 
+    private int heapSize;
 
     /**key不一样的时候比较key，如果遇到删除或者修改操作需要对序列号进行排序 **/
-    private Comparator<InternalKey> comparator;
+    private final Comparator<InternalKey> comparator;
 
 
     public DbIterator(MemTableIterator memTableIterator,
-                      MemTableIterator immutableMemTableIterator,
+                      List<MemTableIterator> immutableMemTableIterators,
                       List<InternalTableIterator> level0Files,
                       List<LevelIterator> levels,
                       Comparator<InternalKey> comparator){
         this.memTableIterator = memTableIterator;
-        this.immutableMemTableIterator = immutableMemTableIterator;
+        this.immutableMemTableIterators = immutableMemTableIterators;
         this.level0Files = level0Files;
         this.levels = levels;
         this.comparator = comparator;
 
+        this.heap = new ComparableIterator[1 + immutableMemTableIterators.size() + level0Files.size() + levels.size()];
+        resetPriorityQueue();
     }
 
     @Override
@@ -55,7 +58,7 @@ public final class DbIterator extends
             memTableIterator.seekToFirst();
         }
 
-        if (immutableMemTableIterator!=null){
+        for (MemTableIterator immutableMemTableIterator: immutableMemTableIterators){
             immutableMemTableIterator.seekToFirst();
         }
 
@@ -66,16 +69,48 @@ public final class DbIterator extends
         for (LevelIterator level: levels){
             level.seekToFirst();
         }
+        resetPriorityQueue();
     }
 
     @Override
     protected void seekInternal(InternalKey targetKey) {
+        if (memTableIterator!=null){
+            memTableIterator.seek(targetKey);
+        }
+
+        for (MemTableIterator immutableMemTableIterator: immutableMemTableIterators){
+            immutableMemTableIterator.seek(targetKey);
+        }
 
+        for(InternalTableIterator level0File: level0Files){
+            level0File.seek(targetKey);
+        }
+
+        for (LevelIterator level: levels){
+            level.seek(targetKey);
+        }
+        resetPriorityQueue();
     }
 
     @Override
     protected Map.Entry<InternalKey, Slice> getNextElement() {
-        return null;
+        if (heapSize == 0){
+            return null;
+        }
+
+        // 取出堆顶的元素，堆顶的迭代器前进一步后下沉到合适的位置
+        ComparableIterator smallest = heap[0];
+        Map.Entry<InternalKey, Slice> result = smallest.next();
+        if (!smallest.hasNext()){
+            // 该数据源已经读完，用堆尾的元素替换堆顶
+            heapSize--;
+            heap[0] = heap[heapSize];
+            heap[heapSize] = null;
+        }
+        if (heapSize > 0){
+            heapSiftDown(0);
+        }
+        return result;
     }
 
     /**
@@ -83,37 +118,84 @@ public final class DbIterator extends
      * 这里使用一个优先队列(最小堆)实现多路归并
      * 该队列保存N个元素(N为迭代器数量)，对内容排序后返回下一个
      * 最小元素，每个迭代器的头放入队列，队列的头部元素就是最小值
-     * 目前有三个数据源 两个磁盘驻留表和一个memtable
+     * 数据源按照从新到旧的顺序编号：memtable、immutable memtable(从新到旧)、level 0文件、level 1~n，
+     * key相同时编号小(更新)的数据源排在前面
      * 一般是用迭代器和游标来遍历内容，此游标保存着上次消耗数据的偏移量
      * 可以通过检查迭代是否完成，也可以用来抽取下一个数据记录
      */
     private void resetPriorityQueue(){
         int i =0 ;
+        Arrays.fill(heap, 0, heapSize, null);
         heapSize = 0;
         if (memTableIterator!=null && memTableIterator.hasNext()){
-            //TODO 基于优先队列实现小顶堆
-//            heapAdd();
+            heapAdd(new ComparableIterator(memTableIterator, comparator, i++, memTableIterator.next()));
         }
 
-        if (immutableMemTableIterator!=null && immutableMemTableIterator.hasNext()){
-//            heapAdd()
+        for (MemTableIterator immutableMemTableIterator: immutableMemTableIterators){
+            if (immutableMemTableIterator.hasNext()){
+                heapAdd(new ComparableIterator(immutableMemTableIterator, comparator, i++, immutableMemTableIterator.next()));
+            }
         }
 
         for (InternalTableIterator level0File: level0Files){
             if (level0File.hasNext()) {
-//                heapAdd();
+                heapAdd(new ComparableIterator(level0File, comparator, i++, level0File.next()));
             }
         }
         for (LevelIterator level: levels){
             if (level.hasNext()){
-                //heapAdd();
+                heapAdd(new ComparableIterator(level, comparator, i++, level.next()));
             }
         }
+    }
 
+    private void heapAdd(ComparableIterator newElement){
+        heap[heapSize] = newElement;
+        heapSiftUp(heapSize++);
     }
 
-    public static void headAdd(){
+    private void heapSiftUp(int childIndex){
+        ComparableIterator target = heap[childIndex];
+        while (childIndex > 0){
+            int parentIndex = (childIndex - 1) / 2;
+            ComparableIterator parent = heap[parentIndex];
+            if (parent.compareTo(target) <= 0){
+                break;
+            }
+            heap[childIndex] = parent;
+            childIndex = parentIndex;
+        }
+        heap[childIndex] = target;
+    }
 
+    private void heapSiftDown(int rootIndex){
+        ComparableIterator target = heap[rootIndex];
+        int childIndex;
+        while ((childIndex = rootIndex * 2 + 1) < heapSize){
+            // 选择较小的子节点
+            if (childIndex + 1 < heapSize && heap[childIndex + 1].compareTo(heap[childIndex]) < 0){
+                childIndex++;
+            }
+            if (target.compareTo(heap[childIndex]) <= 0){
+                break;
+            }
+            heap[rootIndex] = heap[childIndex];
+            rootIndex = childIndex;
+        }
+        heap[rootIndex] = target;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DbIterator");
+        sb.append("{memTableIterator=").append(memTableIterator);
+        sb.append(", immutableMemTableIterators=").append(immutableMemTableIterators);
+        sb.append(", level0Files=").append(level0Files);
+        sb.append(", levels=").append(levels);
+        sb.append(", comparator=").append(comparator);
+        sb.append('}');
+        return sb.toString();
     }
 
     /**
@@ -122,7 +204,7 @@ public final class DbIterator extends
     private static class ComparableIterator implements Iterator<Map.Entry<InternalKey,Slice>>, Comparable<ComparableIterator>{
 
         //重置到写入block的位点
-        private final SeekingIterator<InternalKey,Slice> iterator;
+        private final InternalIterator iterator;
         //有序key的比较器
         private final Comparator<InternalKey> comparator;
 
@@ -130,7 +212,7 @@ public final class DbIterator extends
         //从ssttable文件中读取的下一个元素
         private Map.Entry<InternalKey,Slice> nextElement;
 
-        private ComparableIterator(SeekingIterator<InternalKey,Slice> iterator,
+        private ComparableIterator(InternalIterator iterator,
                                    Comparator<InternalKey> comparator, int ordinal, Map.Entry<InternalKey,Slice> nextElement ){
            this.iterator = iterator;
            this.comparator = comparator;
@@ -0,0 +1,57 @@
+package com.complone.base.impl;
+
+import com.complone.base.include.Slice;
+import com.complone.base.include.SliceOutput;
+import com.complone.base.table.UserFilterPolicy;
+import com.complone.base.utils.DataUnit;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * sstable中存放的是internal key，而用户的filter policy只关心user key，
+ * 所以在交给用户的policy之前，去掉internal key末尾8 byte的sequence number和value type
+ */
+public class InternalFilterPolicy
+        implements UserFilterPolicy
+{
+    private static final Function<Slice, Slice> EXTRACT_USER_KEY = new Function<Slice, Slice>()
+    {
+        @Override
+        public Slice apply(Slice internalKey)
+        {
+            return extractUserKey(internalKey);
+        }
+    };
+
+    private final UserFilterPolicy userPolicy;
+
+    public InternalFilterPolicy(UserFilterPolicy userPolicy)
+    {
+        this.userPolicy = userPolicy;
+    }
+
+    @Override
+    public String name()
+    {
+        return userPolicy.name();
+    }
+
+    @Override
+    public void appendFilter(List<Slice> keys, SliceOutput dst)
+    {
+        userPolicy.appendFilter(Lists.transform(keys, EXTRACT_USER_KEY), dst);
+    }
+
+    @Override
+    public boolean keyMayMatch(Slice key, Slice filter)
+    {
+        return userPolicy.keyMayMatch(extractUserKey(key), filter);
+    }
+
+    private static Slice extractUserKey(Slice internalKey)
+    {
+        return internalKey.slice(0, internalKey.length() - DataUnit.LONG_UNIT);
+    }
+}
@@ -2,6 +2,7 @@ package com.complone.base.impl;
 
 import com.complone.base.include.Slice;
 import com.complone.base.table.UserComparator;
+import com.complone.base.utils.DataUnit;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.complone.base.impl.SequenceNumber.MAX_SEQUENCE_NUMBER;
@@ -19,7 +20,17 @@ public class InternalUserComparator
     @Override
     public int compare(Slice left, Slice right)
     {
-        return internalKeyComparator.compare(new InternalKey(left), new InternalKey(right));
+        // 直接在编码后的key上比较，不创建InternalKey对象，规则和InternalKeyComparator相同：
+        // 先按user key升序，再按sequence number降序
+        int leftUserKeyLength = left.length() - DataUnit.LONG_UNIT;
+        int rightUserKeyLength = right.length() - DataUnit.LONG_UNIT;
+        int result = internalKeyComparator.getUserComparator().compare(left.slice(0, leftUserKeyLength), right.slice(0, rightUserKeyLength));
+        if (result != 0) {
+            return result;
+        }
+        long leftSequence = SequenceNumber.unpackSequenceNumber(left.getLong(leftUserKeyLength));
+        long rightSequence = SequenceNumber.unpackSequenceNumber(right.getLong(rightUserKeyLength));
+        return Long.compare(rightSequence, leftSequence);
     }
 
     @Override
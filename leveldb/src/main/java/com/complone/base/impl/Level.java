@@ -1,18 +1,17 @@
 package com.complone.base.impl;
 
+import com.complone.base.ReadOptions;
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.complone.base.include.Slice;
 import com.complone.base.table.UserComparator;
-import com.complone.base.utils.InternalTableIterator;
 import com.complone.base.utils.LevelIterator;
 
 import java.util.*;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkState;
 import static com.complone.base.impl.SequenceNumber.MAX_SEQUENCE_NUMBER;
 import static com.complone.base.impl.ValueType.VALUE;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 
 public class Level
@@ -23,6 +22,15 @@ public class Level
     private final InternalKeyComparator internalKeyComparator;
     private final List<FileMetaData> files;
 
+    private static final Function<FileMetaData, InternalKey> GET_LARGEST = new Function<FileMetaData, InternalKey>()
+    {
+        @Override
+        public InternalKey apply(FileMetaData fileMetaData)
+        {
+            return fileMetaData.getLargest();
+        }
+    };
+
     public Level(int levelNumber, List<FileMetaData> files, TableCache tableCache, InternalKeyComparator internalKeyComparator)
     {
         checkArgument(levelNumber >= 0, "levelNumber is negative");
@@ -50,15 +58,20 @@ public class Level
     @Override
     public LevelIterator iterator()
     {
-        return createLevelConcatIterator(tableCache, files, internalKeyComparator);
+        return iterator(new ReadOptions());
     }
 
-    public static LevelIterator createLevelConcatIterator(TableCache tableCache, List<FileMetaData> files, InternalKeyComparator internalKeyComparator)
+    public LevelIterator iterator(ReadOptions options)
     {
-        return new LevelIterator(tableCache, files, internalKeyComparator);
+        return createLevelConcatIterator(tableCache, files, internalKeyComparator, options);
     }
 
-    public LookupResult get(LookupKey key, ReadStats readStats)
+    public static LevelIterator createLevelConcatIterator(TableCache tableCache, List<FileMetaData> files, InternalKeyComparator internalKeyComparator, ReadOptions options)
+    {
+        return new LevelIterator(tableCache, files, internalKeyComparator, options);
+    }
+
+    public LookupResult get(LookupKey key, ReadOptions options, ReadStats readStats)
     {
         if (files.isEmpty()) {
             return null;
@@ -78,7 +91,7 @@ public class Level
         }
         else {
             // 二分查找最小的 key >= ikey的文件
-            int index = ceilingEntryIndex(Lists.transform(files, FileMetaData::getLargest), key.getInternalKey(), internalKeyComparator);
+            int index = ceilingEntryIndex(Lists.transform(files, GET_LARGEST), key.getInternalKey(), internalKeyComparator);
 
             // 如果已经找到了文件最后，都没找到，说明sstable中不包含key
             if (index >= files.size()) {
@@ -108,35 +121,58 @@ public class Level
             lastFileRead = fileMetaData;
             lastFileReadLevel = levelNumber;
 
-            // 根据fileMetaData中的file number，从tableCache中获得对应的table的iterator
-            InternalTableIterator iterator = tableCache.newIterator(fileMetaData);
-
-            // 在table中指向 >= lookup key的第一个key
-            iterator.seek(key.getInternalKey());
-
-            if (iterator.hasNext()) {
-                // 解析出block中的key
-                Map.Entry<InternalKey, Slice> entry = iterator.next();
-                InternalKey internalKey = entry.getKey();
-                checkState(internalKey != null, "Corrupt key for %s", key.getUserKey().toString(UTF_8));
-
-                // 如果找到了key
-                //  1. valuetype是value，那么返回LookupResult
-                //  1. valuetype是delete，那么返回LookupResult
-                if (key.getUserKey().equals(internalKey.getUserKey())) {
-                    if (internalKey.getValueType() == ValueType.DELETION) {
-                        return LookupResult.deleted(key);
-                    }
-                    else if (internalKey.getValueType() == VALUE) {
-                        return LookupResult.ok(key, entry.getValue());
-                    }
-                }
+            // 在table中查找 >= lookup key的第一个key，如果user key相同，根据value type返回LookupResult
+            LookupResult lookupResult = tableCache.get(fileMetaData, key, options);
+            if (lookupResult != null) {
+                return lookupResult;
             }
         }
 
         return null;
     }
 
+    /**
+     * 批量查找，keys按照key有序，results中已经有结果的key跳过。
+     * 本层的文件之间没有重叠，文件索引只需要随着key向后移动，落在同一个文件中的key一起查找
+     */
+    public void get(List<LookupKey> keys, LookupResult[] results, ReadOptions options)
+    {
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        List<InternalKey> largestKeys = Lists.transform(files, GET_LARGEST);
+        int index = 0;
+        int i = 0;
+        while (i < keys.size() && index < files.size()) {
+            if (results[i] != null) {
+                i++;
+                continue;
+            }
+
+            // 二分查找最小的 key >= ikey的文件
+            index += ceilingEntryIndex(largestKeys.subList(index, files.size()), keys.get(i).getInternalKey(), internalKeyComparator);
+            if (index >= files.size()) {
+                break;
+            }
+
+            // 收集所有落在该文件范围内还没有结果的key
+            FileMetaData fileMetaData = files.get(index);
+            List<LookupKey> fileKeys = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            for (; i < keys.size() && internalKeyComparator.compare(keys.get(i).getInternalKey(), fileMetaData.getLargest()) <= 0; i++) {
+                if (results[i] == null && userComparator.compare(keys.get(i).getUserKey(), fileMetaData.getSmallest().getUserKey()) >= 0) {
+                    fileKeys.add(keys.get(i));
+                    positions.add(i);
+                }
+            }
+            if (!fileKeys.isEmpty()) {
+                List<LookupResult> fileResults = tableCache.get(fileMetaData, fileKeys, options);
+                for (int j = 0; j < positions.size(); j++) {
+                    results[positions.get(j)] = fileResults.get(j);
+                }
+            }
+            index++;
+        }
+    }
+
     private static <T> int ceilingEntryIndex(List<T> list, T key, Comparator<T> comparator)
     {
         // 如果搜索键包含在列表中，则返回搜索键的索引；否则返回 (-(插入点) - 1)。
@@ -155,18 +191,15 @@ public class Level
 
         UserComparator userComparator = internalKeyComparator.getUserComparator();
         return ((index < files.size()) &&
-                userComparator.compare(largestUserKey, files.get(index).getLargest().getUserKey()) >= 0);
+                userComparator.compare(largestUserKey, files.get(index).getSmallest().getUserKey()) >= 0);
     }
 
+    // 返回第一个最大key不小于targetKey的文件，所有文件都比targetKey小时返回files.size()
     private int findFile(InternalKey targetKey)
     {
-        if (files.isEmpty()) {
-            return files.size();
-        }
-
         // todo replace with Collections.binarySearch
         int left = 0;
-        int right = files.size() - 1;
+        int right = files.size();
 
         // binary search restart positions to find the restart position immediately before the targetKey
         while (left < right) {
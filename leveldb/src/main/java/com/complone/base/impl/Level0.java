@@ -1,16 +1,13 @@
 package com.complone.base.impl;
 
+import com.complone.base.ReadOptions;
 import com.complone.base.include.Slice;
 import com.complone.base.table.UserComparator;
-import com.complone.base.utils.InternalTableIterator;
 import com.complone.base.utils.Level0Iterator;
-import com.google.common.base.Preconditions;
 
 import java.util.*;
 
 import static com.google.common.base.Preconditions.checkState;
-import static com.complone.base.impl.SequenceNumber.MAX_SEQUENCE_NUMBER;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -62,10 +59,10 @@ public class Level0
     @Override
     public Level0Iterator iterator()
     {
-        return new Level0Iterator(tableCache, files, internalKeyComparator);
+        return new Level0Iterator(tableCache, files, internalKeyComparator, new ReadOptions());
     }
 
-    public LookupResult get(LookupKey key, ReadStats readStats)
+    public LookupResult get(LookupKey key, ReadOptions options, ReadStats readStats)
     {
         if (files.isEmpty()) {
             return null;
@@ -86,29 +83,10 @@ public class Level0
 
         readStats.clear();
         for (FileMetaData fileMetaData : fileMetaDataList) {
-            // 根据fileMetaData中的file number，从tableCache中获得对应的table的iterator
-            InternalTableIterator iterator = tableCache.newIterator(fileMetaData);
-
-            // 在table中指向 >= lookup key的第一个key
-            iterator.seek(key.getInternalKey());
-
-            if (iterator.hasNext()) {
-                // 解析出block中的key
-                Map.Entry<InternalKey, Slice> entry = iterator.next();
-                InternalKey internalKey = entry.getKey();
-                Preconditions.checkState(internalKey != null, "Corrupt key for %s", key.getUserKey().toString(UTF_8));
-
-                // 如果找到了key
-                //  1. valuetype是value，那么返回LookupResult
-                //  1. valuetype是delete，那么返回LookupResult
-                if (key.getUserKey().equals(internalKey.getUserKey())) {
-                    if (internalKey.getValueType() == ValueType.DELETION) {
-                        return LookupResult.deleted(key);
-                    }
-                    else if (internalKey.getValueType() == ValueType.VALUE) {
-                        return LookupResult.ok(key, entry.getValue());
-                    }
-                }
+            // 在table中查找 >= lookup key的第一个key，如果user key相同，根据value type返回LookupResult
+            LookupResult lookupResult = tableCache.get(fileMetaData, key, options);
+            if (lookupResult != null) {
+                return lookupResult;
             }
             // 如果readStats中没有File信息，设置当前最新的sst文件为level0
             if (readStats.getSeekFile() == null) {
@@ -121,37 +99,52 @@ public class Level0
         return null;
     }
 
-    public boolean someFileOverlapsRange(Slice smallestUserKey, Slice largestUserKey)
-    {
-        InternalKey smallestInternalKey = new InternalKey(smallestUserKey, MAX_SEQUENCE_NUMBER, ValueType.VALUE);
-        int index = findFile(smallestInternalKey);
-
-        UserComparator userComparator = internalKeyComparator.getUserComparator();
-        return ((index < files.size()) &&
-                userComparator.compare(largestUserKey, files.get(index).getLargest().getUserKey()) >= 0);
-    }
-
-    // 二分查找targetkey所在的文件
-    private int findFile(InternalKey targetKey)
+    /**
+     * 批量查找，keys按照key有序，results中已经有结果的key跳过。
+     * 从新到旧依次查找每个文件，落在同一个文件中的key一起查找
+     */
+    public void get(List<LookupKey> keys, LookupResult[] results, ReadOptions options)
     {
         if (files.isEmpty()) {
-            return files.size();
+            return;
         }
 
-        int left = 0;
-        int right = files.size() - 1;
-
-        while (left < right) {
-            int mid = (left + right) / 2;
+        List<FileMetaData> newestFirst = new ArrayList<>(files);
+        Collections.sort(newestFirst, NEWEST_FIRST);
 
-            if (internalKeyComparator.compare(files.get(mid).getLargest(), targetKey) < 0) {
-                left = mid + 1;
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        for (FileMetaData fileMetaData : newestFirst) {
+            List<LookupKey> fileKeys = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                Slice userKey = keys.get(i).getUserKey();
+                if (results[i] == null &&
+                        userComparator.compare(userKey, fileMetaData.getSmallest().getUserKey()) >= 0 &&
+                        userComparator.compare(userKey, fileMetaData.getLargest().getUserKey()) <= 0) {
+                    fileKeys.add(keys.get(i));
+                    positions.add(i);
+                }
             }
-            else {
-                right = mid;
+            if (!fileKeys.isEmpty()) {
+                List<LookupResult> fileResults = tableCache.get(fileMetaData, fileKeys, options);
+                for (int j = 0; j < positions.size(); j++) {
+                    results[positions.get(j)] = fileResults.get(j);
+                }
+            }
+        }
+    }
+
+    public boolean someFileOverlapsRange(Slice smallestUserKey, Slice largestUserKey)
+    {
+        // level 0的文件之间可能重叠，没有按key排序，需要逐个检查
+        UserComparator userComparator = internalKeyComparator.getUserComparator();
+        for (FileMetaData fileMetaData : files) {
+            if (userComparator.compare(smallestUserKey, fileMetaData.getLargest().getUserKey()) <= 0 &&
+                    userComparator.compare(largestUserKey, fileMetaData.getSmallest().getUserKey()) >= 0) {
+                return true;
             }
         }
-        return right;
+        return false;
     }
 
     public void addFile(FileMetaData fileMetaData)
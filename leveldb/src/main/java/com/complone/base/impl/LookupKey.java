@@ -12,6 +12,8 @@ import com.complone.base.include.Slice;
 public class LookupKey
 {
     private final InternalKey key;
+    // 编码后的internal key，在sstable中查找时才需要，第一次使用时生成
+    private Slice encodedKey;
 
     public LookupKey(Slice userKey, long sequenceNumber)
     {
@@ -23,6 +25,14 @@ public class LookupKey
         return key;
     }
 
+    public Slice getEncodedKey()
+    {
+        if (encodedKey == null) {
+            encodedKey = key.encode();
+        }
+        return encodedKey;
+    }
+
     public Slice getUserKey()
     {
         return key.getUserKey();
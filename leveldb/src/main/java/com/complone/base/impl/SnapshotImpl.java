@@ -5,28 +5,32 @@ import com.complone.base.Snapshot;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * 快照（snapshot）也是基于sequence number实现的，即每一个sequence number代表着数据库的一个版本
+ * 快照（snapshot）也是基于sequence number实现的，即每一个sequence number代表着数据库的一个版本。
+ * 快照只记录sequence number，不持有Version，所以不会阻止compaction删除旧文件；
+ * 所有还没有close的快照挂在DbImpl的SnapshotList上，compaction据此保留快照能看到的旧版本数据
  */
 public class SnapshotImpl
         implements Snapshot
 {
     private final AtomicBoolean closed = new AtomicBoolean();
-    private final Version version;
     private final long lastSequence;
 
-    SnapshotImpl(Version version, long lastSequence)
+    // 以下字段由SnapshotList保护
+    final SnapshotList list;
+    SnapshotImpl prev;
+    SnapshotImpl next;
+
+    SnapshotImpl(SnapshotList list, long lastSequence)
     {
-        this.version = version;
+        this.list = list;
         this.lastSequence = lastSequence;
-        this.version.retain();
     }
 
     @Override
     public void close()
     {
-
         if (closed.compareAndSet(false, true)) {
-            this.version.release();
+            list.delete(this);
         }
     }
 
@@ -35,11 +39,6 @@ public class SnapshotImpl
         return lastSequence;
     }
 
-    public Version getVersion()
-    {
-        return version;
-    }
-
     @Override
     public String toString()
     {
@@ -58,21 +57,12 @@ public class SnapshotImpl
 
         SnapshotImpl snapshot = (SnapshotImpl) o;
 
-        if (lastSequence != snapshot.lastSequence) {
-            return false;
-        }
-        if (!version.equals(snapshot.version)) {
-            return false;
-        }
-
-        return true;
+        return lastSequence == snapshot.lastSequence;
     }
 
     @Override
     public int hashCode()
     {
-        int result = version.hashCode();
-        result = 31 * result + (int) (lastSequence ^ (lastSequence >>> 32));
-        return result;
+        return (int) (lastSequence ^ (lastSequence >>> 32));
     }
 }
@@ -0,0 +1,98 @@
+package com.complone.base.impl;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 所有还没有close的快照组成的双向循环链表，按sequence number从旧到新排列。
+ * 新的快照总是追加在链表尾部(sequence number不会变小)，删除任意一个节点都是O(1)。
+ * compaction开始时取出所有快照的sequence number，只保留每个快照能看到的那个版本。
+ * <p/>
+ * 由DbImpl的mutex保护，快照close时也需要先获取这个mutex。
+ */
+public class SnapshotList
+{
+    private final ReentrantLock mutex;
+    // 哑节点，head.next是最旧的快照，head.prev是最新的快照
+    private final SnapshotImpl head;
+    private int size;
+
+    public SnapshotList(ReentrantLock mutex)
+    {
+        this.mutex = requireNonNull(mutex, "mutex is null");
+        this.head = new SnapshotImpl(this, 0);
+        head.prev = head;
+        head.next = head;
+    }
+
+    public boolean isEmpty()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+        return head.next == head;
+    }
+
+    public SnapshotImpl oldest()
+    {
+        checkState(!isEmpty(), "snapshot list is empty");
+        return head.next;
+    }
+
+    public SnapshotImpl newest()
+    {
+        checkState(!isEmpty(), "snapshot list is empty");
+        return head.prev;
+    }
+
+    public SnapshotImpl newSnapshot(long sequence)
+    {
+        checkState(mutex.isHeldByCurrentThread());
+        checkArgument(isEmpty() || newest().getLastSequence() <= sequence, "snapshot sequence goes backwards");
+
+        SnapshotImpl snapshot = new SnapshotImpl(this, sequence);
+        snapshot.next = head;
+        snapshot.prev = head.prev;
+        snapshot.prev.next = snapshot;
+        snapshot.next.prev = snapshot;
+        size++;
+        return snapshot;
+    }
+
+    /**
+     * 所有快照的sequence number，从旧到新排列，可能有重复
+     */
+    public long[] getSequences()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+        long[] sequences = new long[size];
+        int i = 0;
+        for (SnapshotImpl snapshot = head.next; snapshot != head; snapshot = snapshot.next) {
+            sequences[i++] = snapshot.getLastSequence();
+        }
+        return sequences;
+    }
+
+    void delete(SnapshotImpl snapshot)
+    {
+        mutex.lock();
+        try {
+            checkArgument(snapshot.list == this, "snapshot does not belong to this list");
+            snapshot.prev.next = snapshot.next;
+            snapshot.next.prev = snapshot.prev;
+            snapshot.prev = null;
+            snapshot.next = null;
+            size--;
+        }
+        finally {
+            mutex.unlock();
+        }
+    }
+
+    public int size()
+    {
+        checkState(mutex.isHeldByCurrentThread());
+        return size;
+    }
+}
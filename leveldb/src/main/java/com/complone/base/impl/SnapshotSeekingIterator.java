@@ -4,6 +4,7 @@ import com.complone.base.DBIterator;
 import com.complone.base.include.Slice;
 import com.complone.base.utils.AbstractSeekingIterator;
 
+import java.util.AbstractMap;
 import java.util.Comparator;
 import java.util.Map;
 
@@ -15,17 +16,37 @@ public final class SnapshotSeekingIterator extends AbstractSeekingIterator<Slice
 
     private final DbIterator iterator; //遍历memetable的读取器
 
-    private final SnapshotImpl snapshot; //在compact的过程当中回产生快照
+    private final long lastSequence; //快照的sequence number，之后写入的数据不可见
+
+    private final Version version; //iterator读取的Version，遍历期间不能删除其中的文件
 
     private final Comparator<Slice> userComparator; //key不一样的情况下比较key，一样的情况下意味着遇到了对象删除或者修改操作，
     // 比较SequenceNumber
 
-    public SnapshotSeekingIterator(DbIterator iterator, SnapshotImpl snapshot, Comparator<Slice> userComparator) {
+    private final boolean withExpiry; //TTL模式下value末尾带有过期时间
+
+    private final long currentTime; //TTL模式下用来判断value是否过期的时间
+
+    public SnapshotSeekingIterator(DbIterator iterator, long lastSequence, Version version, Comparator<Slice> userComparator) {
+        this(iterator, lastSequence, version, userComparator, false, 0);
+    }
+
+    /**
+     * TTL模式使用的构造函数，在currentTime之前过期的value按照删除处理
+     */
+    public SnapshotSeekingIterator(DbIterator iterator, long lastSequence, Version version, Comparator<Slice> userComparator, long currentTime) {
+        this(iterator, lastSequence, version, userComparator, true, currentTime);
+    }
+
+    private SnapshotSeekingIterator(DbIterator iterator, long lastSequence, Version version, Comparator<Slice> userComparator, boolean withExpiry, long currentTime) {
         this.iterator = iterator;
-        this.snapshot = snapshot;
+        this.lastSequence = lastSequence;
+        this.version = version;
         this.userComparator = userComparator;
-        //累计当前读取memtable的层数
-        this.snapshot.getVersion().retain();
+        this.withExpiry = withExpiry;
+        this.currentTime = currentTime;
+        //累计当前读取Version的引用数
+        this.version.retain();
     }
 
 
@@ -33,39 +54,72 @@ public final class SnapshotSeekingIterator extends AbstractSeekingIterator<Slice
     protected void seekToFirstInternal() {
         //进入下一条数据读取
         iterator.seekToFirst();
-        //删除已经读取的数据记录
+        //跳过快照之后写入的和已经删除的数据记录
         findNextUserEntry(null);
 
     }
 
     @Override
     protected void seekInternal(Slice targetKey) {
-
+        // 序列号按照降序排列，定位到targetKey在快照中可见的第一个版本
+        iterator.seek(new InternalKey(targetKey, lastSequence, ValueType.VALUE));
+        findNextUserEntry(null);
     }
 
     @Override
     protected Map.Entry<Slice, Slice> getNextElement() {
-        return null;
+        if (!iterator.hasNext()) {
+            return null;
+        }
+
+        Map.Entry<InternalKey, Slice> next = iterator.next();
+
+        // 跳过同一个user key更旧的版本，让迭代器停在下一个可见的user key上
+        findNextUserEntry(next.getKey().getUserKey());
+
+        Slice value = next.getValue();
+        if (withExpiry) {
+            value = TtlValues.stripExpiry(value);
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(next.getKey().getUserKey(), value);
     }
 
+    /**
+     * 跳过序列号大于快照的记录、被删除或者已经过期的key以及小于等于deletedKey的记录
+     */
     private void findNextUserEntry(Slice deletedKey){
         // 是否遍历数据记录到迭代器的末尾
         if (!iterator.hasNext()){
             return;
         }
 
-        while(iterator.hasNext()){
-            //TODO 得到顺序健位
-            //InternalKey internalKey = iterator.peekNext().getKey();
-
-
-        }
+        do {
+            InternalKey internalKey = iterator.peek().getKey();
+
+            // 快照之后写入的数据不可见
+            if (internalKey.getSequenceNumber() <= lastSequence) {
+                if (internalKey.getValueType() == ValueType.DELETION) {
+                    // 该key更旧的版本都需要跳过
+                    deletedKey = internalKey.getUserKey();
+                }
+                else if (internalKey.getValueType() == ValueType.VALUE) {
+                    if (deletedKey == null || userComparator.compare(internalKey.getUserKey(), deletedKey) > 0) {
+                        if (!withExpiry || !TtlValues.isExpired(iterator.peek().getValue(), currentTime)) {
+                            return;
+                        }
+                        // 过期的value和删除一样，同时隐藏该key更旧的版本
+                        deletedKey = internalKey.getUserKey();
+                    }
+                }
+            }
+            iterator.next();
+        } while (iterator.hasNext());
     }
 
 
     public void close()
     {
-        this.snapshot.getVersion().release();
+        this.version.release();
     }
 
 }
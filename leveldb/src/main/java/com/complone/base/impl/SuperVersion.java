@@ -0,0 +1,96 @@
+package com.complone.base.impl;
+
+import com.complone.base.db.MemTable;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 读路径使用的一致性视图：memtable、所有等待flush的immutable memtable和当前Version。
+ * 每次memtable切换或version变化时，在mutex下创建新的SuperVersion并通过volatile引用发布，
+ * 读线程只需要tryRetain就能拿到一份不会被回收的视图，不再需要加mutex。
+ * DbImpl自身持有一个引用，替换时释放；引用数降为0后释放对Version的引用。
+ */
+public final class SuperVersion
+{
+    private final AtomicInteger retained = new AtomicInteger(1);
+    private final MemTable memTable;
+    // 从新到旧排列
+    private final List<MemTable> immutableMemTables;
+    private final Version version;
+
+    public SuperVersion(MemTable memTable, List<MemTable> immutableMemTables, Version version)
+    {
+        this.memTable = requireNonNull(memTable, "memTable is null");
+        this.immutableMemTables = ImmutableList.copyOf(requireNonNull(immutableMemTables, "immutableMemTables is null"));
+        this.version = requireNonNull(version, "version is null");
+        version.retain();
+    }
+
+    public MemTable getMemTable()
+    {
+        return memTable;
+    }
+
+    public List<MemTable> getImmutableMemTables()
+    {
+        return immutableMemTables;
+    }
+
+    public Version getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * 从新到旧依次在memtable和所有immutable memtable中查找，都没有找到时返回null
+     */
+    public LookupResult getFromMemTables(LookupKey key)
+    {
+        LookupResult lookupResult = memTable.get(key);
+        for (int i = 0; lookupResult == null && i < immutableMemTables.size(); i++) {
+            lookupResult = immutableMemTables.get(i).get(key);
+        }
+        return lookupResult;
+    }
+
+    /**
+     * 引用数已经降为0时返回false，调用者需要重新读取最新发布的SuperVersion
+     */
+    public boolean tryRetain()
+    {
+        while (true) {
+            int was = retained.get();
+            if (was <= 0) {
+                return false;
+            }
+            if (retained.compareAndSet(was, was + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release()
+    {
+        int now = retained.decrementAndGet();
+        assert now >= 0 : "SuperVersion was released after it was disposed.";
+        if (now == 0) {
+            version.release();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SuperVersion");
+        sb.append("{retained=").append(retained);
+        sb.append(", immutableMemTables=").append(immutableMemTables.size());
+        sb.append(", version=").append(version);
+        sb.append('}');
+        return sb.toString();
+    }
+}
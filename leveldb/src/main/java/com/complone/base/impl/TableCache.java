@@ -1,12 +1,17 @@
 package com.complone.base.impl;
 
+import com.complone.base.ReadOptions;
+import com.complone.base.table.Block;
+import com.complone.base.table.BlockCache;
 import com.complone.base.utils.Closeables;
+import com.complone.base.utils.DataUnit;
 import com.google.common.cache.*;
 import com.complone.base.include.Slice;
 import com.complone.base.table.FileChannelTable;
 import com.complone.base.table.MMapTable;
 import com.complone.base.table.Table;
 import com.complone.base.table.UserComparator;
+import com.complone.base.table.UserFilterPolicy;
 import com.complone.base.utils.Finalizer;
 import com.complone.base.utils.InternalTableIterator;
 
@@ -14,6 +19,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import static java.util.Objects.requireNonNull;
@@ -21,16 +28,19 @@ import static java.util.Objects.requireNonNull;
 /**
  * TableCache缓存的是Table对象，每个DB一个
  * 它内部使用一个LRUCache缓存所有的table对象，实际上其内容是文件编号{file number, TableAndFile}。
+ * 所有table共享同一个BlockCache，用来缓存解压后的data block。
  *
  */
 public class TableCache
 {
     private final LoadingCache<Long, TableAndFile> cache;
     private final Finalizer<Table> finalizer = new Finalizer<>(1);
+    private final BlockCache blockCache;
 
-    public TableCache(final File databaseDir, int tableCacheSize, final UserComparator userComparator, final boolean verifyChecksums)
+    public TableCache(final File databaseDir, int tableCacheSize, final UserComparator userComparator, final boolean verifyChecksums, final BlockCache blockCache, final UserFilterPolicy filterPolicy)
     {
         requireNonNull(databaseDir, "databaseName is null");
+        this.blockCache = blockCache;
         // 初始化本地缓存，为缓存设置最大存储数量，设置监听器
         cache = CacheBuilder.newBuilder()
                 .maximumSize(tableCacheSize)
@@ -57,7 +67,7 @@ public class TableCache
                         // 说明table不在cache中，则根据file number和db name打开一个RadomAccessFile。
                         // Table文件格式为：<db name>.<filenumber(%6u)>.sst。
                         // 如果文件打开成功，则调用Table::Open读取sstable文件。
-                        return new TableAndFile(databaseDir, fileNumber, userComparator, verifyChecksums);
+                        return new TableAndFile(databaseDir, fileNumber, userComparator, verifyChecksums, blockCache, filterPolicy);
                     }
                 });
     }
@@ -66,11 +76,64 @@ public class TableCache
     {
         return newIterator(file.getNumber());
     }
-    // 函数NewIterator()，返回一个可以遍历Table对象的Iterator指针
+
+    public InternalTableIterator newIterator(FileMetaData file, ReadOptions options)
+    {
+        return newIterator(file.getNumber(), options);
+    }
+
     public InternalTableIterator newIterator(long number)
     {
-        return new InternalTableIterator(getTable(number).iterator());
+        return newIterator(number, new ReadOptions());
     }
+
+    // 函数NewIterator()，返回一个可以遍历Table对象的Iterator指针
+    public InternalTableIterator newIterator(long number, ReadOptions options)
+    {
+        return new InternalTableIterator(getTable(number).iterator(options));
+    }
+    // 在文件中点查key，对应源码中的TableCache::Get()，找到key时返回LookupResult，否则返回null
+    public LookupResult get(FileMetaData file, LookupKey key, ReadOptions options)
+    {
+        return getTable(file.getNumber()).internalGet(key, options, lookupHandler(key));
+    }
+
+    /**
+     * 在同一个文件中批量查找，keys按照key有序，返回的结果与keys一一对应
+     */
+    public List<LookupResult> get(FileMetaData file, List<LookupKey> keys, ReadOptions options)
+    {
+        List<Block.EntryHandler<LookupResult>> handlers = new ArrayList<>(keys.size());
+        for (LookupKey key : keys) {
+            handlers.add(lookupHandler(key));
+        }
+        return getTable(file.getNumber()).internalGet(keys, options, handlers);
+    }
+
+    // 找到的第一个 >= lookup key的entry，如果user key相同，根据value type返回LookupResult
+    private static Block.EntryHandler<LookupResult> lookupHandler(final LookupKey key)
+    {
+        return new Block.EntryHandler<LookupResult>()
+        {
+            @Override
+            public LookupResult handle(Slice internalKey, Slice value)
+            {
+                int userKeyLength = internalKey.length() - DataUnit.LONG_UNIT;
+                if (!key.getUserKey().equals(internalKey.slice(0, userKeyLength))) {
+                    return null;
+                }
+                ValueType valueType = SequenceNumber.unpackValueType(internalKey.getLong(userKeyLength));
+                if (valueType == ValueType.DELETION) {
+                    return LookupResult.deleted(key);
+                }
+                else if (valueType == ValueType.VALUE) {
+                    return LookupResult.ok(key, value);
+                }
+                return null;
+            }
+        };
+    }
+
     // 获得key在文件中的偏移
     public long getApproximateOffsetOf(FileMetaData file, Slice key)
     {
@@ -98,6 +161,9 @@ public class TableCache
         // 清除所有缓存项
         cache.invalidateAll();
         finalizer.destroy();
+        if (blockCache != null) {
+            blockCache.invalidateAll();
+        }
     }
 
     // 清楚文件缓存
@@ -110,7 +176,7 @@ public class TableCache
     {
         private final Table table;
 
-        private TableAndFile(File databaseDir, long fileNumber, UserComparator userComparator, boolean verifyChecksums)
+        private TableAndFile(File databaseDir, long fileNumber, UserComparator userComparator, boolean verifyChecksums, BlockCache blockCache, UserFilterPolicy filterPolicy)
                 throws IOException
         {
             // sstable文件名
@@ -122,12 +188,12 @@ public class TableCache
                 fis = new FileInputStream(tableFile);
                 FileChannel fileChannel = fis.getChannel();
                 if (LevelDBFactory.USE_MMAP) {
-                    table = new MMapTable(tableFile.getAbsolutePath(), fileChannel, userComparator, verifyChecksums);
+                    table = new MMapTable(tableFile.getAbsolutePath(), fileNumber, fileChannel, userComparator, verifyChecksums, blockCache, filterPolicy);
                     // 能走到这里，说明不需要文件流
                     Closeables.closeQuietly(fis);
                 }
                 else {
-                    table = new FileChannelTable(tableFile.getAbsolutePath(), fileChannel, userComparator, verifyChecksums);
+                    table = new FileChannelTable(tableFile.getAbsolutePath(), fileNumber, fileChannel, userComparator, verifyChecksums, blockCache, filterPolicy);
                 }
             }
             catch (IOException ioe) {
@@ -0,0 +1,73 @@
+package com.complone.base.impl;
+
+import com.complone.base.include.Slice;
+import com.complone.base.utils.DataUnit;
+
+/**
+ * TTL模式下每个value的末尾追加8字节的过期时间(毫秒)，
+ * 读取时过期的value视为已删除，compaction时直接丢弃。
+ */
+public final class TtlValues
+{
+    private TtlValues()
+    {
+    }
+
+    /**
+     * 返回一个新的batch，其中每个value都追加了过期时间，原batch保持不变，调用者可以继续复用
+     */
+    public static WriteBatchImpl withExpiry(WriteBatchImpl batch, final long expiryTime)
+    {
+        final WriteBatchImpl result = new WriteBatchImpl();
+        batch.forEach(new WriteBatchImpl.Handler()
+        {
+            @Override
+            public void put(Slice key, Slice value)
+            {
+                result.put(key, appendExpiry(value, expiryTime));
+            }
+
+            @Override
+            public void delete(Slice key)
+            {
+                result.delete(key);
+            }
+        });
+        return result;
+    }
+
+    public static Slice appendExpiry(Slice value, long expiryTime)
+    {
+        Slice result = new Slice(value.length() + DataUnit.LONG_UNIT);
+        result.setBytes(0, value, 0, value.length());
+        result.setLong(value.length(), expiryTime);
+        return result;
+    }
+
+    public static long getExpiry(Slice value)
+    {
+        checkLength(value);
+        return value.getLong(value.length() - DataUnit.LONG_UNIT);
+    }
+
+    public static boolean isExpired(Slice value, long currentTime)
+    {
+        return getExpiry(value) <= currentTime;
+    }
+
+    /**
+     * 去掉末尾的过期时间，返回用户写入的value，不复制数据
+     */
+    public static Slice stripExpiry(Slice value)
+    {
+        checkLength(value);
+        return value.slice(0, value.length() - DataUnit.LONG_UNIT);
+    }
+
+    private static void checkLength(Slice value)
+    {
+        if (value.length() < DataUnit.LONG_UNIT) {
+            throw new IllegalStateException("Value has no expiry time, the database was not written in TTL mode");
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.complone.base.impl;
 
+import com.complone.base.ReadOptions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
@@ -38,8 +39,9 @@ public class Version
     // 合并层数和分数
     private int compactionLevel;
     private double compactionScore;
-    private FileMetaData fileToCompact;
-    private int fileToCompactLevel;
+    // 读线程不加锁更新seek统计
+    private volatile FileMetaData fileToCompact;
+    private volatile int fileToCompactLevel;
 
     public Version(VersionSet versionSet)
     {
@@ -125,38 +127,38 @@ public class Version
     {
         ImmutableList.Builder<InternalIterator> builder = ImmutableList.builder();
         builder.add(level0.iterator());
-        builder.addAll(getLevelIterators());
+        builder.addAll(getLevelIterators(new ReadOptions()));
         return new MergingIterator(builder.build(), getInternalKeyComparator());
     }
 
-    List<InternalTableIterator> getLevel0Files()
+    List<InternalTableIterator> getLevel0Files(ReadOptions options)
     {
         ImmutableList.Builder<InternalTableIterator> builder = ImmutableList.builder();
         for (FileMetaData file : level0.getFiles()) {
-            builder.add(getTableCache().newIterator(file));
+            builder.add(getTableCache().newIterator(file, options));
         }
         return builder.build();
     }
 
-    List<LevelIterator> getLevelIterators()
+    List<LevelIterator> getLevelIterators(ReadOptions options)
     {
         ImmutableList.Builder<LevelIterator> builder = ImmutableList.builder();
         for (Level level : levels) {
             if (!level.getFiles().isEmpty()) {
-                builder.add(level.iterator());
+                builder.add(level.iterator(options));
             }
         }
         return builder.build();
     }
 
-    public LookupResult get(LookupKey key)
+    public LookupResult get(LookupKey key, ReadOptions options)
     {
         // 首先从level 0 找，找不到的话，一层一层往下找
         ReadStats readStats = new ReadStats();
-        LookupResult lookupResult = level0.get(key, readStats);
+        LookupResult lookupResult = level0.get(key, options, readStats);
         if (lookupResult == null) {
             for (Level level : levels) {
-                lookupResult = level.get(key, readStats);
+                lookupResult = level.get(key, options, readStats);
                 if (lookupResult != null) {
                     break;
                 }
@@ -166,6 +168,19 @@ public class Version
         return lookupResult;
     }
 
+    /**
+     * 批量查找，keys按照key有序，results与keys一一对应，已经有结果(包括删除)的key不再查找。
+     * 批量查找不更新seek统计
+     */
+    public void get(List<LookupKey> keys, LookupResult[] results, ReadOptions options)
+    {
+        checkArgument(keys.size() == results.length, "keys and results must have the same size");
+        level0.get(keys, results, options);
+        for (Level level : levels) {
+            level.get(keys, results, options);
+        }
+    }
+
     int pickLevelForMemTableOutput(Slice smallestUserKey, Slice largestUserKey)
     {
         int level = 0;
@@ -256,9 +271,14 @@ public class Version
 
         seekFile.decrementAllowedSeeks();
         if (seekFile.getAllowedSeeks() <= 0 && fileToCompact == null) {
-            fileToCompact = seekFile;
-            fileToCompactLevel = seekFileLevel;
-            return true;
+            synchronized (this) {
+                if (fileToCompact == null) {
+                    // 先写level，读到fileToCompact时level已经可见
+                    fileToCompactLevel = seekFileLevel;
+                    fileToCompact = seekFile;
+                    return true;
+                }
+            }
         }
         return false;
     }
@@ -13,6 +13,9 @@
  */
 package com.complone.base.impl;
 
+import com.complone.base.CompactionStyle;
+import com.complone.base.Options;
+import com.complone.base.ReadOptions;
 import com.complone.base.include.Slice;
 import com.complone.base.table.UserComparator;
 import com.complone.base.utils.MergingIterator;
@@ -27,6 +30,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.complone.base.impl.DbConstants.NUM_LEVELS;
@@ -59,8 +63,8 @@ public class VersionSet
     private long manifestFileNumber = 1;
     // 当前version
     private Version current;
-    // 获取、设置last sequence，set时不能后退
-    private long lastSequence;
+    // 获取、设置last sequence，set时不能后退；读线程不加锁读取
+    private volatile long lastSequence;
     // 返回当前log文件编号
     private long logNumber;
     private long prevLogNumber;
@@ -69,17 +73,25 @@ public class VersionSet
     private final File databaseDir;
     private final TableCache tableCache;
     private final InternalKeyComparator internalKeyComparator;
+    private final Options options;
 
     private LogWriter descriptorLog;
     private final Map<Integer, InternalKey> compactPointers = new TreeMap<>();
+    // 正在compaction的文件，多个compaction同时执行时不能有相同的输入文件，由DbImpl的mutex保护
+    private final Set<Long> compactingFiles = new HashSet<>();
+    // level 0的文件互相重叠，同一时间只允许一个level 0的compaction
+    private boolean level0Compacting;
+    // FIFO按年龄删除文件时使用的文件写入时间，按文件编号缓存，每个文件只读取一次修改时间，由DbImpl的mutex保护
+    private final Map<Long, Long> fileWriteTimes = new HashMap<>();
 
     // VersionSet会使用到TableCache，这个是调用者传入的。TableCache用于Get k/v操作
-    public VersionSet(File databaseDir, TableCache tableCache, InternalKeyComparator internalKeyComparator)
+    public VersionSet(File databaseDir, TableCache tableCache, InternalKeyComparator internalKeyComparator, Options options)
             throws IOException
     {
         this.databaseDir = databaseDir;
         this.tableCache = tableCache;
         this.internalKeyComparator = internalKeyComparator;
+        this.options = options;
         // 创建新的Version并加入到Version链表中，并设置CURRENT=新创建version；
         appendVersion(new Version(this));
 
@@ -199,25 +211,27 @@ public class VersionSet
         // Level-0 files have to be merged together.  For other levels,
         // we will make a concatenating iterator per level.
         // TODO(opt): use concatenating iterator for level-0 if there is no overlap
+        // compaction读出的block只会用到一次，不放入block cache
+        ReadOptions options = new ReadOptions().fillCache(false);
         List<InternalIterator> list = new ArrayList<>();
-        for (int which = 0; which < 2; which++) {
-            if (!c.getInputs()[which].isEmpty()) {
+        for (int which = 0; which < c.getInputs().size(); which++) {
+            if (!c.getInputs().get(which).isEmpty()) {
                 if (c.getLevel() + which == 0) {
-                    List<FileMetaData> files = c.getInputs()[which];
-                    list.add(new Level0Iterator(tableCache, files, internalKeyComparator));
+                    List<FileMetaData> files = c.getInputs().get(which);
+                    list.add(new Level0Iterator(tableCache, files, internalKeyComparator, options));
                 }
                 else {
                     // Create concatenating iterator for the files from this level
-                    list.add(Level.createLevelConcatIterator(tableCache, c.getInputs()[which], internalKeyComparator));
+                    list.add(Level.createLevelConcatIterator(tableCache, c.getInputs().get(which), internalKeyComparator, options));
                 }
             }
         }
         return new MergingIterator(list, internalKeyComparator);
     }
 
-    public LookupResult get(LookupKey key)
+    public LookupResult get(LookupKey key, ReadOptions options)
     {
-        return current.get(key);
+        return current.get(key, options);
     }
 
     public boolean overlapInLevel(int level, Slice smallestUserKey, Slice largestUserKey)
@@ -433,29 +447,25 @@ public class VersionSet
      */
     private void finalizeVersion(Version version)
     {
+        if (options.compactionStyle() == CompactionStyle.UNIVERSAL) {
+            // universal compaction以sorted run的个数计算score
+            version.setCompactionLevel(0);
+            version.setCompactionScore(1.0 * sortedRuns(version).size() / L0_COMPACTION_TRIGGER);
+            return;
+        }
+        if (options.compactionStyle() == CompactionStyle.FIFO) {
+            // 文件的年龄随时间变化，是否需要删除在needsCompaction中检查，这里只记录容量的使用比例
+            version.setCompactionLevel(0);
+            version.setCompactionScore(1.0 * Compaction.totalFileSize(version.getFiles(0)) / options.fifoMaxTableFilesSize());
+            return;
+        }
+
         // Precomputed best level for next compaction
         int bestLevel = -1;
         double bestScore = -1;
 
         for (int level = 0; level < version.numberOfLevels() - 1; level++) {
-            double score;
-            if (level == 0) {
-                // level0和其它level计算方法不同，原因如下，这也是leveldb为compaction所做的另一个优化。
-                // 1. 对于较大的写缓存（write-buffer），做太多的level 0 compaction并不好
-                // 2. 每次read操作都要merge level 0的所有文件，因此我们不希望level 0有太多的小文件存在
-                // （比如写缓存太小，或者压缩比较高，或者覆盖/删除较多导致小文件太多）。这里的写缓存应该就是配置的操作log大小。
-                // 对于level 0以文件个数计算，L0_COMPACTION_TRIGGER默认配置为4
-                score = 1.0 * version.numberOfFilesInLevel(level) / L0_COMPACTION_TRIGGER;
-            }
-            else {
-                // 对于level>0，根据level内的文件总大小计算
-                long levelBytes = 0;
-                for (FileMetaData fileMetaData : version.getFiles(level)) {
-                    levelBytes += fileMetaData.getFileSize();
-                }
-                // maxBytesForLevel：根据level返回其本层文件总大小的预定最大值。
-                score = 1.0 * levelBytes / maxBytesForLevel(level);
-            }
+            double score = compactionScore(version, level);
             // 找到文件最大的level和score
             if (score > bestScore) {
                 bestLevel = level;
@@ -467,6 +477,25 @@ public class VersionSet
         version.setCompactionScore(bestScore);
     }
 
+    private static double compactionScore(Version version, int level)
+    {
+        if (level == 0) {
+            // level0和其它level计算方法不同，原因如下，这也是leveldb为compaction所做的另一个优化。
+            // 1. 对于较大的写缓存（write-buffer），做太多的level 0 compaction并不好
+            // 2. 每次read操作都要merge level 0的所有文件，因此我们不希望level 0有太多的小文件存在
+            // （比如写缓存太小，或者压缩比较高，或者覆盖/删除较多导致小文件太多）。这里的写缓存应该就是配置的操作log大小。
+            // 对于level 0以文件个数计算，L0_COMPACTION_TRIGGER默认配置为4
+            return 1.0 * version.numberOfFilesInLevel(level) / L0_COMPACTION_TRIGGER;
+        }
+        // 对于level>0，根据level内的文件总大小计算
+        long levelBytes = 0;
+        for (FileMetaData fileMetaData : version.getFiles(level)) {
+            levelBytes += fileMetaData.getFileSize();
+        }
+        // maxBytesForLevel：根据level返回其本层文件总大小的预定最大值。
+        return 1.0 * levelBytes / maxBytesForLevel(level);
+    }
+
     // 返回各参数表达式中第一个非空值
     private static <V> V coalesce(V... values)
     {
@@ -507,6 +536,13 @@ public class VersionSet
 
     public boolean needsCompaction()
     {
+        if (options.compactionStyle() == CompactionStyle.FIFO) {
+            return !fifoObsoleteFiles().isEmpty();
+        }
+        if (options.compactionStyle() != CompactionStyle.LEVEL) {
+            // 只有leveled compaction会因为seek次数过多触发compaction
+            return current.getCompactionScore() >= 1;
+        }
         return current.getCompactionScore() >= 1 || current.getFileToCompact() != null;
     }
 
@@ -520,44 +556,250 @@ public class VersionSet
         return setupOtherInputs(level, levelInputs);
     }
 
+    /**
+     * 选出一个和正在执行的compaction没有相同输入文件的compaction，没有时返回null。
+     * 选出的输入文件被标记为正在compaction，compaction结束后需要调用releaseCompaction
+     */
     public Compaction pickCompaction()
     {
+        if (options.compactionStyle() == CompactionStyle.UNIVERSAL) {
+            return pickUniversalCompaction();
+        }
+        if (options.compactionStyle() == CompactionStyle.FIFO) {
+            return pickFifoCompaction();
+        }
+
         // We prefer compactions triggered by too much data in a level over
         // the compactions triggered by seeks.
-        boolean sizeCompaction = (current.getCompactionScore() >= 1);
-        boolean seekCompaction = (current.getFileToCompact() != null);
-
-        int level;
-        List<FileMetaData> levelInputs;
-        if (sizeCompaction) {
-            level = current.getCompactionLevel();
-            checkState(level >= 0);
-            checkState(level + 1 < NUM_LEVELS);
-
-            // Pick the first file that comes after compact_pointer_[level]
-            levelInputs = new ArrayList<>();
-            for (FileMetaData fileMetaData : current.getFiles(level)) {
-                if (!compactPointers.containsKey(level) ||
-                        internalKeyComparator.compare(fileMetaData.getLargest(), compactPointers.get(level)) > 0) {
-                    levelInputs.add(fileMetaData);
-                    break;
-                }
+        // 按score从高到低尝试，score最高的level和正在执行的compaction冲突时尝试其他level
+        final double[] scores = new double[NUM_LEVELS - 1];
+        List<Integer> levels = new ArrayList<>();
+        for (int level = 0; level < NUM_LEVELS - 1; level++) {
+            scores[level] = compactionScore(current, level);
+            if (scores[level] >= 1) {
+                levels.add(level);
+            }
+        }
+        Collections.sort(levels, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer left, Integer right)
+            {
+                return Double.compare(scores[right], scores[left]);
             }
-            if (levelInputs.isEmpty()) {
-                // Wrap-around to the beginning of the key space
-                levelInputs.add(current.getFiles(level).get(0));
+        });
+        for (int level : levels) {
+            Compaction compaction = pickSizeCompaction(level);
+            if (compaction != null) {
+                return compaction;
             }
         }
-        else if (seekCompaction) {
-            level = current.getFileToCompactLevel();
-            levelInputs = ImmutableList.of(current.getFileToCompact());
+
+        FileMetaData fileToCompact = current.getFileToCompact();
+        if (fileToCompact != null && !compactingFiles.contains(fileToCompact.getNumber())) {
+            return setupCompaction(current.getFileToCompactLevel(), ImmutableList.of(fileToCompact));
         }
-        else {
+        return null;
+    }
+
+    /**
+     * universal compaction：level 0的每个文件和每个非空的level都是一个sorted run，从新到旧排列，
+     * 越新的run所在的level越小。按以下顺序选择需要合并的相邻run：
+     * 1. 除最旧的run之外的数据量超过最旧run的universalMaxSizeAmplificationPercent，合并所有run；
+     * 2. 从新到旧，下一个run不比之前累计的数据量大universalSizeRatio以上时一起合并，至少两个run；
+     * 3. run的个数仍然达到阈值，合并最新的几个run使个数降到阈值以下。
+     */
+    private Compaction pickUniversalCompaction()
+    {
+        // 同一时间只执行一个universal compaction，保证输出的层在执行期间不会被其他compaction修改
+        if (!compactingFiles.isEmpty()) {
             return null;
         }
+        List<SortedRun> runs = sortedRuns(current);
+        if (runs.size() < L0_COMPACTION_TRIGGER) {
+            return null;
+        }
+
+        long newerBytes = 0;
+        for (int i = 0; i < runs.size() - 1; i++) {
+            newerBytes += runs.get(i).size;
+        }
+        if (newerBytes * 100 > options.universalMaxSizeAmplificationPercent() * runs.get(runs.size() - 1).size) {
+            return setupUniversalCompaction(runs, 0, runs.size());
+        }
+
+        for (int start = 0; start < runs.size() - 1; start++) {
+            long candidateBytes = runs.get(start).size;
+            int end = start + 1;
+            while (end < runs.size() && runs.get(end).size * 100 <= candidateBytes * (100 + options.universalSizeRatio())) {
+                candidateBytes += runs.get(end).size;
+                end++;
+            }
+            if (end - start >= 2) {
+                return setupUniversalCompaction(runs, start, end);
+            }
+        }
 
+        return setupUniversalCompaction(runs, 0, runs.size() - L0_COMPACTION_TRIGGER + 2);
+    }
+
+    /**
+     * 合并runs中[start, end)范围内的run，必要时向更旧的方向扩大范围
+     */
+    private Compaction setupUniversalCompaction(List<SortedRun> runs, int start, int end)
+    {
+        // 选中了level 0的文件时，更旧的level 0文件也要一起合并，否则它们会比写到更高层的输出先被读到
+        int level0Runs = 0;
+        while (level0Runs < runs.size() && runs.get(level0Runs).level == 0) {
+            level0Runs++;
+        }
+        if (start < level0Runs) {
+            end = Math.max(end, level0Runs);
+        }
+
+        // 输出写入下一个更旧的run之前的那一层，中间的层都是空的；合并到最旧的run时写入最后一层
+        int outputLevel;
+        while (true) {
+            outputLevel = end < runs.size() ? runs.get(end).level - 1 : NUM_LEVELS - 1;
+            if (outputLevel > 0) {
+                break;
+            }
+            end++;
+        }
+
+        int level = runs.get(start).level;
+        List<List<FileMetaData>> inputs = new ArrayList<>();
+        for (int i = level; i <= outputLevel; i++) {
+            inputs.add(new ArrayList<FileMetaData>());
+        }
+        for (SortedRun run : runs.subList(start, end)) {
+            inputs.get(run.level - level).addAll(run.files);
+        }
+
+        Compaction compaction = new Compaction(current, level, outputLevel, inputs, ImmutableList.<FileMetaData>of());
+        for (List<FileMetaData> files : inputs) {
+            for (FileMetaData input : files) {
+                compactingFiles.add(input.getNumber());
+            }
+        }
+        if (level == 0) {
+            level0Compacting = true;
+        }
+        return compaction;
+    }
+
+    /**
+     * FIFO compaction：所有文件都在level 0，超过容量或者年龄上限时删除最旧的文件，不做任何合并
+     */
+    private Compaction pickFifoCompaction()
+    {
+        if (!compactingFiles.isEmpty()) {
+            return null;
+        }
+        List<FileMetaData> files = fifoObsoleteFiles();
+        if (files.isEmpty()) {
+            return null;
+        }
+        for (FileMetaData file : files) {
+            compactingFiles.add(file.getNumber());
+        }
+        level0Compacting = true;
+        return Compaction.newDeletionCompaction(current, files);
+    }
+
+    /**
+     * 从最旧的level 0文件开始，返回需要删除的文件，直到剩余文件的总大小不超过上限并且最旧的文件没有过期
+     */
+    private List<FileMetaData> fifoObsoleteFiles()
+    {
+        List<FileMetaData> files = new ArrayList<>(current.getFiles(0));
+        Collections.sort(files, Level0.NEWEST_FIRST);
+        long totalBytes = Compaction.totalFileSize(files);
+        long ttlMillis = TimeUnit.SECONDS.toMillis(options.fifoTtlSeconds());
+        long currentTime = System.currentTimeMillis();
+
+        List<FileMetaData> obsolete = new ArrayList<>();
+        for (int i = files.size() - 1; i >= 0; i--) {
+            FileMetaData file = files.get(i);
+            boolean expired = false;
+            if (ttlMillis > 0) {
+                expired = currentTime - fileWriteTime(file) > ttlMillis;
+            }
+            if (totalBytes <= options.fifoMaxTableFilesSize() && !expired) {
+                break;
+            }
+            obsolete.add(file);
+            totalBytes -= file.getFileSize();
+        }
+        return obsolete;
+    }
+
+    /**
+     * 文件写完之后不再修改，修改时间就是其中最新数据的写入时间
+     */
+    private long fileWriteTime(FileMetaData file)
+    {
+        Long writeTime = fileWriteTimes.get(file.getNumber());
+        if (writeTime == null) {
+            writeTime = new File(databaseDir, Filename.tableFileName(file.getNumber())).lastModified();
+            fileWriteTimes.put(file.getNumber(), writeTime);
+        }
+        return writeTime;
+    }
+
+    private static List<SortedRun> sortedRuns(Version version)
+    {
+        List<SortedRun> runs = new ArrayList<>();
+        List<FileMetaData> level0Files = new ArrayList<>(version.getFiles(0));
+        Collections.sort(level0Files, Level0.NEWEST_FIRST);
+        for (FileMetaData file : level0Files) {
+            runs.add(new SortedRun(0, ImmutableList.of(file)));
+        }
+        for (int level = 1; level < NUM_LEVELS; level++) {
+            List<FileMetaData> files = version.getFiles(level);
+            if (!files.isEmpty()) {
+                runs.add(new SortedRun(level, files));
+            }
+        }
+        return runs;
+    }
+
+    private Compaction pickSizeCompaction(int level)
+    {
+        if (level == 0 && level0Compacting) {
+            return null;
+        }
+
+        // Pick the first file that comes after compact_pointer_[level]
+        List<FileMetaData> files = current.getFiles(level);
+        int start = 0;
+        if (compactPointers.containsKey(level)) {
+            while (start < files.size() &&
+                    internalKeyComparator.compare(files.get(start).getLargest(), compactPointers.get(level)) <= 0) {
+                start++;
+            }
+        }
+        // 从compact pointer之后的文件开始，跳过正在compaction的文件，到末尾后回到开头
+        for (int i = 0; i < files.size(); i++) {
+            FileMetaData fileMetaData = files.get((start + i) % files.size());
+            if (compactingFiles.contains(fileMetaData.getNumber())) {
+                continue;
+            }
+            Compaction compaction = setupCompaction(level, ImmutableList.of(fileMetaData));
+            if (compaction != null) {
+                return compaction;
+            }
+        }
+        return null;
+    }
+
+    private Compaction setupCompaction(int level, List<FileMetaData> levelInputs)
+    {
         // Files in level 0 may overlap each other, so pick up all overlapping ones
         if (level == 0) {
+            if (level0Compacting) {
+                return null;
+            }
             Map.Entry<InternalKey, InternalKey> range = getRange(levelInputs);
             // Note that the next call will discard the file we placed in
             // c->inputs_[0] earlier and replace it with an overlapping set
@@ -567,8 +809,33 @@ public class VersionSet
             checkState(!levelInputs.isEmpty());
         }
 
-        Compaction compaction = setupOtherInputs(level, levelInputs);
-        return compaction;
+        return setupOtherInputs(level, levelInputs);
+    }
+
+    /**
+     * compaction结束后(无论成功与否)调用，释放它的输入文件
+     */
+    public void releaseCompaction(Compaction compaction)
+    {
+        for (List<FileMetaData> inputs : compaction.getInputs()) {
+            for (FileMetaData input : inputs) {
+                compactingFiles.remove(input.getNumber());
+                fileWriteTimes.remove(input.getNumber());
+            }
+        }
+        if (compaction.getLevel() == 0) {
+            level0Compacting = false;
+        }
+    }
+
+    private boolean isCompacting(List<FileMetaData> files)
+    {
+        for (FileMetaData file : files) {
+            if (compactingFiles.contains(file.getNumber())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private Compaction setupOtherInputs(int level, List<FileMetaData> levelInputs)
@@ -595,7 +862,7 @@ public class VersionSet
                 InternalKey newLimit = range.getValue();
 
                 List<FileMetaData> expanded1 = getOverlappingInputs(level + 1, newStart, newLimit);
-                if (expanded1.size() == levelUpInputs.size()) {
+                if (expanded1.size() == levelUpInputs.size() && !isCompacting(expanded0)) {
 //              Log(options_->info_log,
 //                  "Expanding@%d %d+%d to %d+%d\n",
 //                  level,
@@ -629,7 +896,21 @@ public class VersionSet
 //                    EscapeString(largest.Encode()).c_str());
 //        }
 
+        // 和正在执行的compaction有相同的输入文件时不能同时执行
+        if (isCompacting(levelInputs) || isCompacting(levelUpInputs)) {
+            return null;
+        }
+
         Compaction compaction = new Compaction(current, level, levelInputs, levelUpInputs, grandparents);
+        for (FileMetaData input : levelInputs) {
+            compactingFiles.add(input.getNumber());
+        }
+        for (FileMetaData input : levelUpInputs) {
+            compactingFiles.add(input.getNumber());
+        }
+        if (level == 0) {
+            level0Compacting = true;
+        }
 
         // Update the place where we will do the next compaction for this level.
         // We update this immediately instead of waiting for the VersionEdit
@@ -698,6 +979,23 @@ public class VersionSet
         return result;
     }
 
+    /**
+     * universal compaction中的一个sorted run：level 0的一个文件，或者一个level的所有文件
+     */
+    private static class SortedRun
+    {
+        private final int level;
+        private final List<FileMetaData> files;
+        private final long size;
+
+        private SortedRun(int level, List<FileMetaData> files)
+        {
+            this.level = level;
+            this.files = files;
+            this.size = Compaction.totalFileSize(files);
+        }
+    }
+
     /**
      * Builder是一个内部辅助类，其主要作用是：
      * 1 把一个MANIFEST记录的元信息应用到版本管理器VersionSet中；
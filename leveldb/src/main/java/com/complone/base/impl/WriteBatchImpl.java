@@ -63,6 +63,17 @@ public class WriteBatchImpl
         return this;
     }
 
+    /**
+     * 把other中的操作追加到当前batch的末尾，group commit时用来合并多个写请求
+     */
+    public WriteBatchImpl append(WriteBatchImpl other)
+    {
+        requireNonNull(other, "other is null");
+        batch.addAll(other.batch);
+        approximateSize += other.approximateSize;
+        return this;
+    }
+
     @Override
     public void close()
     {
@@ -70,7 +81,15 @@ public class WriteBatchImpl
 
     public void forEach(Handler handler)
     {
-        for (Map.Entry<Slice, Slice> entry : batch) {
+        forEach(0, batch.size(), handler);
+    }
+
+    /**
+     * 只遍历[fromIndex, toIndex)范围内的操作，并行插入memtable时每个线程处理一段
+     */
+    public void forEach(int fromIndex, int toIndex, Handler handler)
+    {
+        for (Map.Entry<Slice, Slice> entry : batch.subList(fromIndex, toIndex)) {
             Slice key = entry.getKey();
             Slice value = entry.getValue();
             if (value != null) {
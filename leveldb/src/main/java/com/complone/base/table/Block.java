@@ -16,9 +16,12 @@ package com.complone.base.table;
 import com.complone.base.db.Slices;
 import com.complone.base.impl.SeekingIterable;
 import com.complone.base.include.Slice;
+import com.complone.base.include.SliceInput;
+import com.complone.base.utils.Coding;
 import com.complone.base.utils.DataUnit;
 import com.google.common.base.Preconditions;
 
+import java.util.Arrays;
 import java.util.Comparator;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -110,4 +113,75 @@ public class Block
     {
         return new BlockIterator(data, restartPositions, comparator);
     }
+
+    /**
+     * 点查：找到第一个key >= targetKey的entry，交给handler处理并返回handler的结果，没有这样的entry时返回null。
+     * 查找方式和BlockIterator.seek相同，先二分查找重启点，再线性查找，但是不创建iterator和BlockEntry对象。
+     * 有共享前缀的key会拼接在同一个buffer中，所以handler拿到的key只在handle调用期间有效。
+     */
+    public <T> T get(Slice targetKey, EntryHandler<T> handler)
+    {
+        int restartCount = restartPositions.length() / DataUnit.INT_UNIT;
+        if (restartCount == 0) {
+            return null;
+        }
+
+        SliceInput input = data.input();
+        int left = 0;
+        int right = restartCount - 1;
+        while (left < right) {
+            int mid = (left + right + 1) / 2;
+            input.setPosition(restartPositions.getInt(mid * DataUnit.INT_UNIT));
+            // 重启点的key没有共享前缀，可以直接在data上比较
+            Coding.decodeInt(input);
+            int keyLength = Coding.decodeInt(input);
+            Coding.decodeInt(input);
+            if (comparator.compare(data.slice(input.position(), keyLength), targetKey) < 0) {
+                left = mid;
+            }
+            else {
+                right = mid - 1;
+            }
+        }
+
+        input.setPosition(restartPositions.getInt(left * DataUnit.INT_UNIT));
+        Slice previousKey = null;
+        byte[] keyBuffer = null;
+        while (input.isReadable()) {
+            int sharedKeyLength = Coding.decodeInt(input);
+            int nonSharedKeyLength = Coding.decodeInt(input);
+            int valueLength = Coding.decodeInt(input);
+
+            Slice key;
+            if (sharedKeyLength == 0) {
+                key = data.slice(input.position(), nonSharedKeyLength);
+            }
+            else {
+                Preconditions.checkState(previousKey != null, "Entry has a shared key but no previous entry was provided");
+                int keyLength = sharedKeyLength + nonSharedKeyLength;
+                if (keyBuffer == null || keyBuffer.length < keyLength) {
+                    keyBuffer = keyBuffer == null ? new byte[Math.max(64, keyLength)] : Arrays.copyOf(keyBuffer, Math.max(keyBuffer.length * 2, keyLength));
+                }
+                // 前一个key如果已经在buffer中，共享前缀就不需要再拷贝
+                if (previousKey.getData() != keyBuffer) {
+                    previousKey.getBytes(0, keyBuffer, 0, sharedKeyLength);
+                }
+                data.getBytes(input.position(), keyBuffer, sharedKeyLength, nonSharedKeyLength);
+                key = new Slice(keyBuffer, 0, keyLength);
+            }
+            input.skipBytes(nonSharedKeyLength);
+
+            if (comparator.compare(key, targetKey) >= 0) {
+                return handler.handle(key, data.slice(input.position(), valueLength));
+            }
+            input.skipBytes(valueLength);
+            previousKey = key;
+        }
+        return null;
+    }
+
+    public interface EntryHandler<T>
+    {
+        T handle(Slice key, Slice value);
+    }
 }
\ No newline at end of file
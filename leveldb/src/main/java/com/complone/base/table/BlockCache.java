@@ -0,0 +1,85 @@
+package com.complone.base.table;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * BlockCache缓存的是解压之后的data block，每个DB一个，对应源码中的Options::block_cache。
+ * 缓存的key是{file number, block offset}，容量按照block的字节数计算，而不是block的个数。
+ * 内部使用guava的Cache实现：concurrencyLevel即分片数，每个分片各自加锁，
+ * 各自维护LRU链表以及 capacity / 分片数 的容量上限，读线程之间不会竞争同一把锁。
+ */
+public class BlockCache
+{
+    private static final int SHARD_COUNT = 16;
+
+    private final Cache<CacheKey, Block> cache;
+
+    public BlockCache(long capacity)
+    {
+        checkArgument(capacity > 0, "capacity must be positive");
+        cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(SHARD_COUNT)
+                .maximumWeight(capacity)
+                .weigher(new Weigher<CacheKey, Block>()
+                {
+                    @Override
+                    public int weigh(CacheKey key, Block block)
+                    {
+                        return (int) block.size();
+                    }
+                })
+                .build();
+    }
+
+    public Block get(long fileNumber, long blockOffset)
+    {
+        return cache.getIfPresent(new CacheKey(fileNumber, blockOffset));
+    }
+
+    public void put(long fileNumber, long blockOffset, Block block)
+    {
+        cache.put(new CacheKey(fileNumber, blockOffset), block);
+    }
+
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    private static final class CacheKey
+    {
+        private final long fileNumber;
+        private final long blockOffset;
+
+        private CacheKey(long fileNumber, long blockOffset)
+        {
+            this.fileNumber = fileNumber;
+            this.blockOffset = blockOffset;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey cacheKey = (CacheKey) o;
+            return fileNumber == cacheKey.fileNumber && blockOffset == cacheKey.blockOffset;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = (int) (fileNumber ^ (fileNumber >>> 32));
+            result = 31 * result + (int) (blockOffset ^ (blockOffset >>> 32));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.table;
+
+import com.complone.base.FilterPolicy;
+import com.complone.base.db.Slices;
+import com.complone.base.include.DynamicSliceOutput;
+import com.complone.base.include.Slice;
+import com.complone.base.include.SliceOutput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 布隆过滤器，对应源码中的NewBloomFilterPolicy(bits_per_key)。
+ * 每个key占用bitsPerKey个bit，使用k = bitsPerKey * ln(2)个hash函数，
+ * k个hash值由一次hash的结果通过double hashing得到，filter的最后一个字节记录k。
+ * bitsPerKey取10时，误判率大约是1%。
+ */
+public class BloomFilterPolicy
+        implements FilterPolicy, UserFilterPolicy
+{
+    private final int bitsPerKey;
+    private final int probes;
+
+    public BloomFilterPolicy(int bitsPerKey)
+    {
+        checkArgument(bitsPerKey > 0, "bitsPerKey must be positive");
+        this.bitsPerKey = bitsPerKey;
+        // 向下取整可以少算一次hash，误判率只有轻微的上升
+        int k = (int) (bitsPerKey * 0.69);
+        this.probes = Math.max(1, Math.min(30, k));
+    }
+
+    @Override
+    public String name()
+    {
+        return "leveldb.BuiltinBloomFilter2";
+    }
+
+    @Override
+    public byte[] createFilter(List<byte[]> keys)
+    {
+        List<Slice> slices = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            slices.add(Slices.wrappedBuffer(key));
+        }
+        DynamicSliceOutput output = new DynamicSliceOutput(filterLength(keys.size()));
+        appendFilter(slices, output);
+        return output.slice().getBytes();
+    }
+
+    @Override
+    public boolean keyMayMatch(byte[] key, byte[] filter)
+    {
+        return keyMayMatch(Slices.wrappedBuffer(key), Slices.wrappedBuffer(filter));
+    }
+
+    @Override
+    public void appendFilter(List<Slice> keys, SliceOutput dst)
+    {
+        // 最后一个字节存放hash函数的个数
+        byte[] array = new byte[filterLength(keys.size())];
+        int bits = (array.length - 1) * 8;
+        for (Slice key : keys) {
+            int h = bloomHash(key);
+            // 循环右移17位作为double hashing的步长
+            int delta = (h >>> 17) | (h << 15);
+            for (int j = 0; j < probes; j++) {
+                int bitPosition = Integer.remainderUnsigned(h, bits);
+                array[bitPosition / 8] |= (1 << (bitPosition % 8));
+                h += delta;
+            }
+        }
+        array[array.length - 1] = (byte) probes;
+        dst.writeBytes(array);
+    }
+
+    @Override
+    public boolean keyMayMatch(Slice key, Slice filter)
+    {
+        int length = filter.length();
+        if (length < 2) {
+            return false;
+        }
+
+        int bits = (length - 1) * 8;
+        int k = filter.getUnsignedByte(length - 1);
+        if (k > 30) {
+            // 为新的编码方式保留，当作匹配处理
+            return true;
+        }
+
+        int h = bloomHash(key);
+        int delta = (h >>> 17) | (h << 15);
+        for (int j = 0; j < k; j++) {
+            int bitPosition = Integer.remainderUnsigned(h, bits);
+            if ((filter.getByte(bitPosition / 8) & (1 << (bitPosition % 8))) == 0) {
+                return false;
+            }
+            h += delta;
+        }
+        return true;
+    }
+
+    private int filterLength(int keyCount)
+    {
+        // key太少时误判率会很高，所以至少使用64个bit
+        int bits = Math.max(64, keyCount * bitsPerKey);
+        return (bits + 7) / 8 + 1;
+    }
+
+    /**
+     * 源码中的Hash(data, n, 0xbc9f1d34)，和murmur hash类似，memtable的bloom filter也使用这个hash
+     */
+    @SuppressWarnings("fallthrough")
+    public static int bloomHash(Slice key)
+    {
+        int m = 0xc6a4a793;
+        int r = 24;
+        int length = key.length();
+        int h = 0xbc9f1d34 ^ (length * m);
+
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            h += key.getInt(i);
+            h *= m;
+            h ^= (h >>> 16);
+        }
+
+        switch (length - i) {
+            case 3:
+                h += key.getUnsignedByte(i + 2) << 16;
+                // fall through
+            case 2:
+                h += key.getUnsignedByte(i + 1) << 8;
+                // fall through
+            case 1:
+                h += key.getUnsignedByte(i);
+                h *= m;
+                h ^= (h >>> r);
+                break;
+            default:
+                break;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BloomFilterPolicy");
+        sb.append("{bitsPerKey=").append(bitsPerKey);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.table;
+
+import com.complone.base.FilterPolicy;
+import com.complone.base.include.Slice;
+import com.complone.base.include.SliceOutput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CustomUserFilterPolicy
+        implements UserFilterPolicy
+{
+    private final FilterPolicy filterPolicy;
+
+    public CustomUserFilterPolicy(FilterPolicy filterPolicy)
+    {
+        this.filterPolicy = filterPolicy;
+    }
+
+    @Override
+    public String name()
+    {
+        return filterPolicy.name();
+    }
+
+    @Override
+    public void appendFilter(List<Slice> keys, SliceOutput dst)
+    {
+        List<byte[]> userKeys = new ArrayList<>(keys.size());
+        for (Slice key : keys) {
+            userKeys.add(key.getBytes());
+        }
+        dst.writeBytes(filterPolicy.createFilter(userKeys));
+    }
+
+    @Override
+    public boolean keyMayMatch(Slice key, Slice filter)
+    {
+        return filterPolicy.keyMayMatch(key.getBytes(), filter.getBytes());
+    }
+}
@@ -17,10 +17,10 @@ import java.util.Comparator;
 public class FileChannelTable
         extends Table
 {
-    public FileChannelTable(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums)
+    public FileChannelTable(String name, long fileNumber, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums, BlockCache blockCache, UserFilterPolicy filterPolicy)
             throws IOException
     {
-        super(name, fileChannel, comparator, verifyChecksums);
+        super(name, fileNumber, fileChannel, comparator, verifyChecksums, blockCache, filterPolicy);
     }
 
     @Override
@@ -33,9 +33,9 @@ public class FileChannelTable
         return Footer.readFooter(Slices.copiedBuffer(footerData));
     }
 
-    // 压缩block的data，返回压缩后的block
+    // 读取block的data，如果是压缩过的则解压，返回block的内容
     @Override
-    protected Block readBlock(BlockHandle blockHandle)
+    protected Slice readBlockContents(BlockHandle blockHandle)
             throws IOException
     {
         // 读 block trailer，获得压缩类型 和 crc32
@@ -46,22 +46,13 @@ public class FileChannelTable
         ByteBuffer uncompressedBuffer = read(blockHandle.getOffset(), blockHandle.getDataSize());
         Slice uncompressedData;
         if (blockTrailer.getCompressionType() == CompressionType.SNAPPY) {
-            synchronized (FileChannelTable.class) {
-                int uncompressedLength = uncompressedLength(uncompressedBuffer);
-                if (uncompressedScratch.capacity() < uncompressedLength) {
-                    uncompressedScratch = ByteBuffer.allocateDirect(uncompressedLength);
-                }
-                uncompressedScratch.clear();
-
-                Snappy.uncompress(uncompressedBuffer, uncompressedScratch);
-                uncompressedData = Slices.copiedBuffer(uncompressedScratch);
-            }
+            uncompressedData = uncompress(uncompressedBuffer);
         }
         else {
             uncompressedData = Slices.copiedBuffer(uncompressedBuffer);
         }
 
-        return new Block(uncompressedData, comparator);
+        return uncompressedData;
     }
 
     private ByteBuffer read(long offset, int length)
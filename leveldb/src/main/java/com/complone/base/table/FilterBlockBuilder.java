@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.table;
+
+import com.complone.base.include.DynamicSliceOutput;
+import com.complone.base.include.Slice;
+import com.complone.base.utils.IntVector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 构建sstable中的filter block，对应源码中的FilterBlockBuilder。
+ * 每2KB(FILTER_BASE)的data block偏移范围生成一个filter，格式为：
+ * [filter 0] ... [filter N-1] [filter 0的偏移(4 byte)] ... [filter N-1的偏移] [偏移数组的起始位置(4 byte)] [FILTER_BASE_LG(1 byte)]
+ * 调用顺序必须是 (startBlock addKey*)* finish
+ */
+public class FilterBlockBuilder
+{
+    static final int FILTER_BASE_LG = 11;
+    static final int FILTER_BASE = 1 << FILTER_BASE_LG;
+
+    private final UserFilterPolicy policy;
+    // 当前filter还未生成的key
+    private final List<Slice> keys = new ArrayList<>();
+    private final DynamicSliceOutput result = new DynamicSliceOutput(1024);
+    private final IntVector filterOffsets = new IntVector(32);
+
+    public FilterBlockBuilder(UserFilterPolicy policy)
+    {
+        this.policy = requireNonNull(policy, "policy is null");
+    }
+
+    public void startBlock(long blockOffset)
+    {
+        long filterIndex = blockOffset / FILTER_BASE;
+        checkArgument(filterIndex >= filterOffsets.size(), "blockOffset must be increasing");
+        while (filterIndex > filterOffsets.size()) {
+            generateFilter();
+        }
+    }
+
+    public void addKey(Slice key)
+    {
+        keys.add(key);
+    }
+
+    public Slice finish()
+    {
+        if (!keys.isEmpty()) {
+            generateFilter();
+        }
+
+        // 写入每个filter的偏移
+        int arrayOffset = result.size();
+        filterOffsets.write(result);
+        result.writeInt(arrayOffset);
+        result.writeByte(FILTER_BASE_LG);
+        return result.slice();
+    }
+
+    private void generateFilter()
+    {
+        filterOffsets.add(result.size());
+        if (keys.isEmpty()) {
+            // 这个范围内没有key，filter为空
+            return;
+        }
+        policy.appendFilter(keys, result);
+        keys.clear();
+    }
+}
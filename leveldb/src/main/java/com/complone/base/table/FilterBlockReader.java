@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.table;
+
+import com.complone.base.include.Slice;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 读取filter block，对应源码中的FilterBlockReader
+ */
+public class FilterBlockReader
+{
+    private final UserFilterPolicy policy;
+    private final Slice data;
+    // 偏移数组的起始位置
+    private final int offsetsStart;
+    // filter的个数
+    private final int filterCount;
+    private final int baseLg;
+
+    public FilterBlockReader(UserFilterPolicy policy, Slice contents)
+    {
+        this.policy = requireNonNull(policy, "policy is null");
+        this.data = requireNonNull(contents, "contents is null");
+
+        int length = contents.length();
+        // 至少需要4 byte的偏移数组起始位置和1 byte的baseLg
+        if (length < 5) {
+            offsetsStart = 0;
+            filterCount = 0;
+            baseLg = 0;
+            return;
+        }
+        int lastWord = contents.getInt(length - 5);
+        if (lastWord < 0 || lastWord > length - 5) {
+            offsetsStart = 0;
+            filterCount = 0;
+            baseLg = 0;
+            return;
+        }
+        baseLg = contents.getUnsignedByte(length - 1);
+        offsetsStart = lastWord;
+        filterCount = (length - 5 - lastWord) / 4;
+    }
+
+    public boolean keyMayMatch(long blockOffset, Slice key)
+    {
+        long index = blockOffset >> baseLg;
+        if (index < filterCount) {
+            int start = data.getInt(offsetsStart + (int) index * 4);
+            // 最后一个filter的limit正好是偏移数组的起始位置
+            int limit = data.getInt(offsetsStart + (int) index * 4 + 4);
+            if (start <= limit && limit <= offsetsStart) {
+                if (start == limit) {
+                    // 空filter，这个范围内没有任何key
+                    return false;
+                }
+                return policy.keyMayMatch(key, data.slice(start, limit - start));
+            }
+        }
+        // 出错时当作可能存在处理
+        return true;
+    }
+}
@@ -13,10 +13,14 @@
  */
 package com.complone.base.table;
 
+import com.complone.base.ReadOptions;
+import com.complone.base.db.Slices;
+import com.complone.base.impl.LookupKey;
 import com.complone.base.impl.SeekingIterable;
 import com.complone.base.include.Slice;
 import com.complone.base.utils.Closeables;
 import com.complone.base.utils.Coding;
+import com.complone.base.utils.Snappy;
 import com.complone.base.utils.TableIterator;
 import com.google.common.base.Throwables;
 
@@ -24,23 +28,41 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 
 public abstract class Table
         implements SeekingIterable<Slice, Slice>
 {
     protected final String name;
+    protected final long fileNumber;
     protected final FileChannel fileChannel;
     protected final Comparator<Slice> comparator;
     protected final boolean verifyChecksums;
     protected final Block indexBlock;
     protected final BlockHandle metaindexBlockHandle;
+    // 可以为null，表示不使用block cache
+    protected final BlockCache blockCache;
+    // 没有设置filter policy，或者文件中没有对应的filter block时为null
+    protected final FilterBlockReader filter;
 
-    public Table(String name, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums)
+    // 从index block的value中解析出data block的BlockHandle
+    private static final Block.EntryHandler<BlockHandle> BLOCK_HANDLE_DECODER = new Block.EntryHandler<BlockHandle>()
+    {
+        @Override
+        public BlockHandle handle(Slice key, Slice value)
+        {
+            return BlockHandle.readBlockHandle(value.input());
+        }
+    };
+
+    public Table(String name, long fileNumber, FileChannel fileChannel, Comparator<Slice> comparator, boolean verifyChecksums, BlockCache blockCache, UserFilterPolicy filterPolicy)
             throws IOException
     {
         requireNonNull(name, "name is null");
@@ -51,6 +73,8 @@ public abstract class Table
         requireNonNull(comparator, "comparator is null");
 
         this.name = name;
+        this.fileNumber = fileNumber;
+        this.blockCache = blockCache;
         this.fileChannel = fileChannel;
         this.verifyChecksums = verifyChecksums;
         this.comparator = comparator;
@@ -60,6 +84,30 @@ public abstract class Table
         Footer footer = init();
         indexBlock = readBlock(footer.getIndexBlockHandle());
         metaindexBlockHandle = footer.getMetaindexBlockHandle();
+        filter = readFilter(filterPolicy);
+    }
+
+    // 通过meta index block找到filter block，对应源码中的Table::ReadMeta()
+    private FilterBlockReader readFilter(UserFilterPolicy filterPolicy)
+            throws IOException
+    {
+        if (filterPolicy == null) {
+            return null;
+        }
+
+        // meta index block是按BytewiseComparator排序的
+        Block metaindexBlock = new Block(readBlockContents(metaindexBlockHandle), new BytewiseComparator());
+        BlockIterator iterator = metaindexBlock.iterator();
+        Slice filterKey = Slices.copiedBuffer(TableBuilder.filterBlockKey(filterPolicy), UTF_8);
+        iterator.seek(filterKey);
+        if (iterator.hasNext()) {
+            BlockEntry entry = iterator.next();
+            if (entry.getKey().equals(filterKey)) {
+                BlockHandle filterHandle = BlockHandle.readBlockHandle(entry.getValue().input());
+                return new FilterBlockReader(filterPolicy, readBlockContents(filterHandle));
+            }
+        }
+        return null;
     }
 
     protected abstract Footer init()
@@ -68,12 +116,30 @@ public abstract class Table
     @Override
     public TableIterator iterator()
     {
-        return new TableIterator(this, indexBlock.iterator());
+        return iterator(new ReadOptions());
     }
+
+    public TableIterator iterator(ReadOptions options)
+    {
+        return new TableIterator(this, indexBlock.iterator(), options);
+    }
+
     // 根据blockEntry的成员变量访问table中对应的Block对象
-    public Block openBlock(Slice blockEntry)
+    public Block openBlock(Slice blockEntry, ReadOptions options)
     {
-        BlockHandle blockHandle = BlockHandle.readBlockHandle(blockEntry.input());
+        return openBlock(BlockHandle.readBlockHandle(blockEntry.input()), options);
+    }
+
+    private Block openBlock(BlockHandle blockHandle, ReadOptions options)
+    {
+        // 先查block cache，命中的话就不用再读文件和解压
+        if (blockCache != null) {
+            Block cached = blockCache.get(fileNumber, blockHandle.getOffset());
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         Block dataBlock;
         try {
             dataBlock = readBlock(blockHandle);
@@ -81,12 +147,68 @@ public abstract class Table
         catch (IOException e) {
             throw Throwables.propagate(e);
         }
+        // fillCache为false时(比如compaction时的顺序扫描)，读出的block不放进cache，避免把热点block挤出去
+        if (blockCache != null && options.fillCache()) {
+            blockCache.put(fileNumber, blockHandle.getOffset(), dataBlock);
+        }
         return dataBlock;
     }
 
-    protected static ByteBuffer uncompressedScratch = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+    /**
+     * 点查，对应源码中的Table::InternalGet()。
+     * 在index block中找到key所在的data block，如果filter判断key可能存在，再在data block中找到第一个>=key的entry交给handler，
+     * 整个过程不创建iterator和entry对象。table中没有>=key的entry，或者被filter过滤掉时返回null。
+     */
+    public <T> T internalGet(LookupKey key, ReadOptions options, Block.EntryHandler<T> handler)
+    {
+        Slice internalKey = key.getEncodedKey();
+        BlockHandle blockHandle = indexBlock.get(internalKey, BLOCK_HANDLE_DECODER);
+        if (blockHandle == null) {
+            return null;
+        }
+
+        // filter是按data block的偏移组织的
+        if (filter != null && !filter.keyMayMatch(blockHandle.getOffset(), internalKey)) {
+            return null;
+        }
+        return openBlock(blockHandle, options).get(internalKey, handler);
+    }
+
+    /**
+     * 批量点查，keys需要按照internal key有序，返回的结果与keys一一对应。
+     * 相邻的key落在同一个data block时，只读取、解码一次block
+     */
+    public <T> List<T> internalGet(List<LookupKey> keys, ReadOptions options, List<Block.EntryHandler<T>> handlers)
+    {
+        checkArgument(keys.size() == handlers.size(), "keys and handlers must have the same size");
+        List<T> results = new ArrayList<>(keys.size());
+        Block block = null;
+        long blockOffset = -1;
+        for (int i = 0; i < keys.size(); i++) {
+            Slice internalKey = keys.get(i).getEncodedKey();
+            BlockHandle blockHandle = indexBlock.get(internalKey, BLOCK_HANDLE_DECODER);
+            T result = null;
+            if (blockHandle != null && (filter == null || filter.keyMayMatch(blockHandle.getOffset(), internalKey))) {
+                if (block == null || blockOffset != blockHandle.getOffset()) {
+                    block = openBlock(blockHandle, options);
+                    blockOffset = blockHandle.getOffset();
+                }
+                result = block.get(internalKey, handlers.get(i));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
     // 根据BlockHandle读取Block
-    protected abstract Block readBlock(BlockHandle blockHandle)
+    protected Block readBlock(BlockHandle blockHandle)
+            throws IOException
+    {
+        return new Block(readBlockContents(blockHandle), comparator);
+    }
+
+    // 根据BlockHandle读取block的内容，如果是压缩过的则解压
+    protected abstract Slice readBlockContents(BlockHandle blockHandle)
             throws IOException;
 
     protected int uncompressedLength(ByteBuffer data)
@@ -96,6 +218,40 @@ public abstract class Table
         return length;
     }
 
+    /**
+     * 解压snappy压缩的block，直接解压到新分配的Slice中，不经过共享的scratch buffer，所以不需要加锁。
+     * 压缩数据不在堆上时(mmap)，先拷贝到当前线程的buffer中，再按byte[]解压。
+     */
+    protected Slice uncompress(ByteBuffer compressed)
+            throws IOException
+    {
+        Slice uncompressed = Slices.allocate(uncompressedLength(compressed));
+        if (compressed.hasArray()) {
+            Snappy.uncompress(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining(), uncompressed.getData(), uncompressed.getOffset());
+        }
+        else {
+            int length = compressed.remaining();
+            byte[] input = COMPRESSED_SCRATCH.get();
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+                COMPRESSED_SCRATCH.set(input);
+            }
+            compressed.duplicate().get(input, 0, length);
+            Snappy.uncompress(input, 0, length, uncompressed.getData(), uncompressed.getOffset());
+        }
+        return uncompressed;
+    }
+
+    // 每个线程一个，用来存放从mmap中拷贝出来的压缩数据
+    private static final ThreadLocal<byte[]> COMPRESSED_SCRATCH = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[4 * 1024];
+        }
+    };
+
     /**
      * 给定一个key，返回一个data block在file中的偏移量
      */
@@ -119,6 +275,7 @@ public abstract class Table
         StringBuilder sb = new StringBuilder();
         sb.append("Table");
         sb.append("{name='").append(name).append('\'');
+        sb.append(", fileNumber=").append(fileNumber);
         sb.append(", comparator=").append(comparator);
         sb.append(", verifyChecksums=").append(verifyChecksums);
         sb.append('}');
@@ -19,6 +19,7 @@ import com.complone.base.Options;
 import com.complone.base.include.Slice;
 import com.complone.base.utils.Snappy;
 import com.google.common.base.Throwables;
+import com.complone.base.db.RateLimiterImpl;
 import com.complone.base.db.Slices;
 import com.complone.base.utils.Crc32;
 
@@ -26,6 +27,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.Objects.requireNonNull;
 import static com.complone.base.impl.VersionSet.TARGET_FILE_SIZE;
@@ -38,10 +41,16 @@ public class TableBuilder
     private final CompressionType compressionType;
     // table文件
     private final FileChannel fileChannel;
+    // 限制写入速度，没有设置时为null
+    private final RateLimiterImpl rateLimiter;
+    private final RateLimiterImpl.Priority ioPriority;
     // table的data block
     private final BlockBuilder dataBlockBuilder;
     // table的index block
     private final BlockBuilder indexBlockBuilder;
+    // table的filter block，没有设置filter policy时为null
+    private final FilterBlockBuilder filterBlockBuilder;
+    private final UserFilterPolicy filterPolicy;
     // 当前data block最后的k/v对的key
     private Slice lastKey;
     private final UserComparator userComparator;
@@ -64,10 +73,20 @@ public class TableBuilder
     // 要写入data block在table文件中的偏移
     private long position;
     // data block的选项
-    public TableBuilder(Options options, FileChannel fileChannel, UserComparator userComparator)
+    public TableBuilder(Options options, FileChannel fileChannel, UserComparator userComparator, UserFilterPolicy filterPolicy)
+    {
+        this(options, fileChannel, userComparator, filterPolicy, null, RateLimiterImpl.Priority.LOW);
+    }
+
+    /**
+     * @param rateLimiter 写入之前申请令牌，为null时不限速
+     * @param ioPriority 设置了rateLimiter时写入使用的优先级，flush使用HIGH，compaction使用LOW
+     */
+    public TableBuilder(Options options, FileChannel fileChannel, UserComparator userComparator, UserFilterPolicy filterPolicy, RateLimiterImpl rateLimiter, RateLimiterImpl.Priority ioPriority)
     {
         requireNonNull(options, "options is null");
         requireNonNull(fileChannel, "fileChannel is null");
+        requireNonNull(ioPriority, "ioPriority is null");
         try {
             checkState(position == fileChannel.position(),
                     "Expected position %s to equal fileChannel.position %s",
@@ -79,6 +98,8 @@ public class TableBuilder
 
         this.fileChannel = fileChannel;
         this.userComparator = userComparator;
+        this.rateLimiter = rateLimiter;
+        this.ioPriority = ioPriority;
 
         blockRestartInterval = options.blockRestartInterval();
         blockSize = options.blockSize();
@@ -89,6 +110,15 @@ public class TableBuilder
         // with expected 50% compression
         int expectedNumberOfBlocks = 1024;
         indexBlockBuilder = new BlockBuilder(BlockHandle.MAX_ENCODED_LENGTH * expectedNumberOfBlocks, 1, userComparator);
+        this.filterPolicy = filterPolicy;
+        if (filterPolicy != null) {
+            filterBlockBuilder = new FilterBlockBuilder(filterPolicy);
+            filterBlockBuilder.startBlock(0);
+        }
+        else {
+            filterBlockBuilder = null;
+        }
+
         // 初始化最后的key是空Slice
         lastKey = Slices.EMPTY_SLICE;
     }
@@ -135,6 +165,10 @@ public class TableBuilder
             pendingIndexEntry = false;
         }
 
+        if (filterBlockBuilder != null) {
+            filterBlockBuilder.addKey(key);
+        }
+
         lastKey = key;
         entryCount++;
         dataBlockBuilder.add(key, value);
@@ -160,6 +194,10 @@ public class TableBuilder
 
         pendingHandle = writeBlock(dataBlockBuilder);
         pendingIndexEntry = true;
+        if (filterBlockBuilder != null) {
+            // 下一个data block从position开始
+            filterBlockBuilder.startBlock(position);
+        }
     }
 
     /**
@@ -173,11 +211,21 @@ public class TableBuilder
     {
         // 关闭该block，获得block的序列化数据Slice
         Slice raw = blockBuilder.finish();
+        BlockHandle blockHandle = writeRawBlock(raw, compressionType);
+
+        // 清空data block
+        blockBuilder.reset();
 
+        return blockHandle;
+    }
+
+    private BlockHandle writeRawBlock(Slice raw, CompressionType type)
+            throws IOException
+    {
         // 根据配置参数决定是否压缩，以及根据压缩格式压缩数据内容
         Slice blockContents = raw;
         CompressionType blockCompressionType = CompressionType.NONE;
-        if (compressionType == CompressionType.SNAPPY) {
+        if (type == CompressionType.SNAPPY) {
             // 初始化compressedOutput，即压缩后的data block的临时空间，长度为源数据的长度
             ensureCompressedOutputCapacity(maxCompressedLength(raw.length()));
             try {
@@ -203,11 +251,9 @@ public class TableBuilder
         BlockHandle blockHandle = new BlockHandle(position, blockContents.length());
 
         // 将data block写入文件
+        requestWrite(blockContents.length() + trailer.length());
         position += fileChannel.write(new ByteBuffer[] {blockContents.toByteBuffer(), trailer.toByteBuffer()});
 
-        // 清空data block
-        blockBuilder.reset();
-
         return blockHandle;
     }
 
@@ -227,8 +273,17 @@ public class TableBuilder
         // 把文件设为closed
         closed = true;
 
+        // filter block不压缩，读取时可以直接使用
+        BlockHandle filterBlockHandle = null;
+        if (filterBlockBuilder != null) {
+            filterBlockHandle = writeRawBlock(filterBlockBuilder.finish(), CompressionType.NONE);
+        }
+
         // 通过meta index block，可以根据filter名字快速定位到filter的数据区。
         BlockBuilder metaIndexBlockBuilder = new BlockBuilder(256, blockRestartInterval, new BytewiseComparator());
+        if (filterBlockHandle != null) {
+            metaIndexBlockBuilder.add(Slices.copiedBuffer(filterBlockKey(filterPolicy), UTF_8), BlockHandle.writeBlockHandle(filterBlockHandle));
+        }
 
         BlockHandle metaindexBlockHandle = writeBlock(metaIndexBlockBuilder);
 
@@ -247,9 +302,24 @@ public class TableBuilder
         // 写footer
         Footer footer = new Footer(metaindexBlockHandle, indexBlockHandle);
         Slice footerEncoding = Footer.writeFooter(footer);
+        requestWrite(footerEncoding.length());
         position += fileChannel.write(footerEncoding.toByteBuffer());
     }
 
+    // 设置了rateLimiter时，写入之前先获取令牌
+    private void requestWrite(long bytes)
+    {
+        if (rateLimiter != null) {
+            rateLimiter.request(bytes, ioPriority);
+        }
+    }
+
+    // meta index block中filter对应的key
+    static String filterBlockKey(UserFilterPolicy filterPolicy)
+    {
+        return "filter." + filterPolicy.name();
+    }
+
     public void abandon()
     {
         checkState(!closed, "table is finished");
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.complone.base.table;
+
+import com.complone.base.include.Slice;
+import com.complone.base.include.SliceOutput;
+
+import java.util.List;
+
+/**
+ * FilterPolicy在引擎内部的形式，和UserComparator一样直接操作Slice，避免每次查找都拷贝key和filter
+ */
+public interface UserFilterPolicy
+{
+    String name();
+
+    /**
+     * 为一组有序的key生成filter，并追加到dst之后
+     */
+    void appendFilter(List<Slice> keys, SliceOutput dst);
+
+    /**
+     * 如果key在生成filter时的key列表中，必须返回true；否则应当以较大的概率返回false
+     */
+    boolean keyMayMatch(Slice key, Slice filter);
+}
@@ -1,5 +1,6 @@
 package com.complone.base.utils;
 
+import com.complone.base.ReadOptions;
 import com.complone.base.impl.InternalKey;
 import com.complone.base.impl.SeekingIterator;
 import com.complone.base.impl.TableCache;
@@ -18,11 +19,11 @@ public final class Level0Iterator
     private final PriorityQueue<ComparableIterator> priorityQueue;
     private final Comparator<InternalKey> comparator;
 
-    public Level0Iterator(TableCache tableCache, List<FileMetaData> files, Comparator<InternalKey> comparator)
+    public Level0Iterator(TableCache tableCache, List<FileMetaData> files, Comparator<InternalKey> comparator, ReadOptions options)
     {
         ImmutableList.Builder<InternalTableIterator> builder = ImmutableList.builder();
         for (FileMetaData file : files) {
-            builder.add(tableCache.newIterator(file));
+            builder.add(tableCache.newIterator(file, options));
         }
         this.inputs = builder.build();
         this.comparator = comparator;
@@ -60,6 +61,8 @@ public final class Level0Iterator
 
     private void resetPriorityQueue(Comparator<InternalKey> comparator)
     {
+        // seek之前队列中的元素已经失效
+        priorityQueue.clear();
         int i = 0;
         for (InternalTableIterator input : inputs) {
             if (input.hasNext()) {
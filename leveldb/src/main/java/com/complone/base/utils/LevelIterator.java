@@ -1,5 +1,6 @@
 package com.complone.base.utils;
 
+import com.complone.base.ReadOptions;
 import com.complone.base.impl.InternalKey;
 import com.complone.base.impl.InternalKeyComparator;
 import com.complone.base.impl.TableCache;
@@ -17,11 +18,13 @@ public final class LevelIterator
     private final List<FileMetaData> files;
     private final InternalKeyComparator comparator;
     private InternalTableIterator current;
+    private final ReadOptions options;
     private int index;
 
-    public LevelIterator(TableCache tableCache, List<FileMetaData> files, InternalKeyComparator comparator)
+    public LevelIterator(TableCache tableCache, List<FileMetaData> files, InternalKeyComparator comparator, ReadOptions options)
     {
         this.tableCache = tableCache;
+        this.options = options;
         this.files = files;
         this.comparator = comparator;
     }
@@ -118,7 +121,7 @@ public final class LevelIterator
     {
         FileMetaData fileMetaData = files.get(index);
         index++;
-        return tableCache.newIterator(fileMetaData);
+        return tableCache.newIterator(fileMetaData, options);
     }
 
     @Override
@@ -48,6 +48,8 @@ public final class MergingIterator
     // 注意这里从level 1 开始
     private void resetPriorityQueue(Comparator<InternalKey> comparator)
     {
+        // seek之前队列中的元素已经失效
+        priorityQueue.clear();
         int i = 1;
         for (InternalIterator level : levels) {
             if (level.hasNext()) {
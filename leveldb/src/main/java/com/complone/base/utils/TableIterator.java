@@ -13,6 +13,7 @@
  */
 package com.complone.base.utils;
 
+import com.complone.base.ReadOptions;
 import com.complone.base.include.Slice;
 import com.complone.base.table.Block;
 import com.complone.base.table.BlockIterator;
@@ -33,11 +34,13 @@ public final class TableIterator
      * 遍历block data的迭代器
      */
     private BlockIterator current;
+    private final ReadOptions options;
 
-    public TableIterator(Table table, BlockIterator blockIterator)
+    public TableIterator(Table table, BlockIterator blockIterator, ReadOptions options)
     {
         this.table = table;
         this.blockIterator = blockIterator;
+        this.options = options;
         current = null;
     }
 
@@ -105,7 +108,7 @@ public final class TableIterator
     private BlockIterator getNextBlock()
     {
         Slice blockHandle = blockIterator.next().getValue();
-        Block dataBlock = table.openBlock(blockHandle);
+        Block dataBlock = table.openBlock(blockHandle, options);
         return dataBlock.iterator();
     }
 
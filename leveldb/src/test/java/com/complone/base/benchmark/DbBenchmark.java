@@ -0,0 +1,263 @@
+package com.complone.base.benchmark;
+
+import com.complone.base.DB;
+import com.complone.base.DBIterator;
+import com.complone.base.Options;
+import com.complone.base.impl.LevelDBFactory;
+import com.complone.base.utils.FileUtils;
+import com.google.common.base.Splitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 简单的性能测试，参考源码中的db_bench。不是单元测试，直接运行main方法：
+ * <p/>
+ * <code>
+ * DbBenchmark --num=1000000 --value_size=100 --threads=1,2,4,8 --cache_size=0 --db=/tmp/dbbench
+ * </code>
+ * <p/>
+ * readrandom使用不同的线程数随机读取，用来观察读路径在多线程下的扩展性；
+ * cache_size默认为0，每次读取都要解压data block。
+ * readseq顺序遍历整个数据库，seekrandom随机seek后读取一小段范围，
+ * 数据分布在memtable和多层sstable中，用来观察多路归并的扫描吞吐。
+ */
+public class DbBenchmark
+{
+    // seekrandom每次seek之后读取的记录数
+    private static final int SCAN_LENGTH = 100;
+
+    private final int num;
+    private final int valueSize;
+    private final List<Integer> threadCounts;
+    private final long cacheSize;
+    private final File databaseDir;
+
+    public DbBenchmark(int num, int valueSize, List<Integer> threadCounts, long cacheSize, File databaseDir)
+    {
+        this.num = num;
+        this.valueSize = valueSize;
+        this.threadCounts = threadCounts;
+        this.cacheSize = cacheSize;
+        this.databaseDir = databaseDir;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        int num = 1000000;
+        int valueSize = 100;
+        List<Integer> threadCounts = new ArrayList<>();
+        long cacheSize = 0;
+        File databaseDir = new File(System.getProperty("java.io.tmpdir"), "dbbench");
+        for (String arg : args) {
+            if (arg.startsWith("--num=")) {
+                num = Integer.parseInt(arg.substring("--num=".length()));
+            }
+            else if (arg.startsWith("--value_size=")) {
+                valueSize = Integer.parseInt(arg.substring("--value_size=".length()));
+            }
+            else if (arg.startsWith("--threads=")) {
+                for (String threads : Splitter.on(',').trimResults().split(arg.substring("--threads=".length()))) {
+                    threadCounts.add(Integer.parseInt(threads));
+                }
+            }
+            else if (arg.startsWith("--cache_size=")) {
+                cacheSize = Long.parseLong(arg.substring("--cache_size=".length()));
+            }
+            else if (arg.startsWith("--db=")) {
+                databaseDir = new File(arg.substring("--db=".length()));
+            }
+            else {
+                throw new IllegalArgumentException("Invalid argument " + arg);
+            }
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+            threadCounts.add(2);
+            threadCounts.add(4);
+            threadCounts.add(8);
+        }
+        new DbBenchmark(num, valueSize, threadCounts, cacheSize, databaseDir).run();
+    }
+
+    public void run()
+            throws Exception
+    {
+        FileUtils.deleteRecursively(databaseDir);
+        printHeader();
+
+        DB db = open();
+        try {
+            fillRandom(db);
+        }
+        finally {
+            db.close();
+        }
+
+        // 重新打开，读取时数据都在sstable中
+        db = open();
+        try {
+            for (int threads : threadCounts) {
+                readRandom(db, threads);
+            }
+            readSequential(db);
+            seekRandom(db);
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    private DB open()
+            throws IOException
+    {
+        Options options = new Options()
+                .createIfMissing(true)
+                .cacheSize(cacheSize);
+        return LevelDBFactory.factory.open(databaseDir, options);
+    }
+
+    private void fillRandom(DB db)
+    {
+        byte[] value = compressibleValue(new Random(301), valueSize);
+        Random random = new Random(301);
+        long start = System.nanoTime();
+        for (int i = 0; i < num; i++) {
+            db.put(key(random.nextInt(num)), value);
+        }
+        report("fillrandom", 1, num, System.nanoTime() - start);
+    }
+
+    private void readRandom(final DB db, int threads)
+            throws InterruptedException
+    {
+        final int readsPerThread = num / threads;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] found = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int j = 0; j < readsPerThread; j++) {
+                            if (db.get(key(random.nextInt(num))) != null) {
+                                found[thread]++;
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "readrandom-" + i).start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+
+        long totalFound = 0;
+        for (long count : found) {
+            totalFound += count;
+        }
+        report("readrandom", threads, (long) readsPerThread * threads, elapsed);
+        System.out.printf("%-12s   (%d of %d found)%n", "", totalFound, (long) readsPerThread * threads);
+    }
+
+    private void readSequential(DB db)
+            throws IOException
+    {
+        long bytes = 0;
+        long entries = 0;
+        long start = System.nanoTime();
+        try (DBIterator iterator = db.iterator()) {
+            for (iterator.seekToFirst(); iterator.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                bytes += entry.getKey().length + entry.getValue().length;
+                entries++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        report("readseq", 1, entries, elapsed);
+        System.out.printf("%-12s   (%.1f MB/s)%n", "", (bytes / 1048576.0) / (elapsed / 1.0e9));
+    }
+
+    private void seekRandom(DB db)
+            throws IOException
+    {
+        int seeks = Math.max(1, num / SCAN_LENGTH);
+        long entries = 0;
+        Random random = new Random(301);
+        long start = System.nanoTime();
+        try (DBIterator iterator = db.iterator()) {
+            for (int i = 0; i < seeks; i++) {
+                iterator.seek(key(random.nextInt(num)));
+                for (int j = 0; j < SCAN_LENGTH && iterator.hasNext(); j++) {
+                    iterator.next();
+                    entries++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        report("seekrandom", 1, seeks, elapsed);
+        System.out.printf("%-12s   (%d entries scanned, %d per seek)%n", "", entries, SCAN_LENGTH);
+    }
+
+    private void printHeader()
+    {
+        System.out.printf("Keys:       16 bytes each%n");
+        System.out.printf("Values:     %d bytes each (%d bytes after compression)%n", valueSize, valueSize / 2);
+        System.out.printf("Entries:    %d%n", num);
+        System.out.printf("Cache:      %d bytes%n", cacheSize);
+        System.out.printf("------------------------------------------------%n");
+    }
+
+    private static void report(String name, int threads, long operations, long elapsedNanos)
+    {
+        double micros = elapsedNanos / 1000.0;
+        // 多线程时按总的吞吐量计算每个操作的平均耗时
+        System.out.printf("%-12s : threads=%-3d %11.3f micros/op; %12.1f ops/sec%n",
+                name,
+                threads,
+                micros / operations,
+                operations / (micros / 1000000.0));
+    }
+
+    private static byte[] key(int i)
+    {
+        return String.format("%016d", i).getBytes(UTF_8);
+    }
+
+    // 前一半是随机数据，后一半重复前一半，压缩率大约是50%
+    private static byte[] compressibleValue(Random random, int length)
+    {
+        byte[] value = new byte[length];
+        int half = length / 2;
+        for (int i = 0; i < half; i++) {
+            value[i] = (byte) (' ' + random.nextInt(95));
+        }
+        for (int i = half; i < length; i++) {
+            value[i] = value[i - half];
+        }
+        return value;
+    }
+}
@@ -0,0 +1,127 @@
+package com.complone.base.benchmark;
+
+import com.complone.base.db.BloomFilterMemTable;
+import com.complone.base.db.MemTable;
+import com.complone.base.db.SkipListMemTable;
+import com.complone.base.db.Slices;
+import com.complone.base.impl.InternalKeyComparator;
+import com.complone.base.impl.LookupKey;
+import com.complone.base.impl.ValueType;
+import com.complone.base.include.Slice;
+import com.complone.base.table.BytewiseComparator;
+
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * memtable bloom filter的性能测试，不是单元测试，直接运行main方法：
+ * <p/>
+ * <code>
+ * MemTableBloomBenchmark --num=500000 --reads=1000000 --bloom_ratio=0.1
+ * </code>
+ * <p/>
+ * 向memtable写入num条记录，然后查找reads个不存在的key，分别测量没有filter和有filter时的耗时。
+ * filter的大小按照写满之后memtable的内存占用乘以bloom_ratio计算，与DbImpl中按writeBufferSize计算一致。
+ */
+public class MemTableBloomBenchmark
+{
+    // 每种配置先运行的轮数，让JIT完成编译
+    private static final int WARMUP_ROUNDS = 2;
+
+    private final int num;
+    private final int reads;
+    private final double bloomRatio;
+
+    public MemTableBloomBenchmark(int num, int reads, double bloomRatio)
+    {
+        this.num = num;
+        this.reads = reads;
+        this.bloomRatio = bloomRatio;
+    }
+
+    public static void main(String[] args)
+    {
+        int num = 500000;
+        int reads = 1000000;
+        double bloomRatio = 0.1;
+        for (String arg : args) {
+            if (arg.startsWith("--num=")) {
+                num = Integer.parseInt(arg.substring("--num=".length()));
+            }
+            else if (arg.startsWith("--reads=")) {
+                reads = Integer.parseInt(arg.substring("--reads=".length()));
+            }
+            else if (arg.startsWith("--bloom_ratio=")) {
+                bloomRatio = Double.parseDouble(arg.substring("--bloom_ratio=".length()));
+            }
+            else {
+                throw new IllegalArgumentException("Invalid argument " + arg);
+            }
+        }
+        new MemTableBloomBenchmark(num, reads, bloomRatio).run();
+    }
+
+    public void run()
+    {
+        InternalKeyComparator comparator = new InternalKeyComparator(new BytewiseComparator());
+        MemTable plain = fill(new SkipListMemTable(comparator));
+        int filterBytes = (int) (plain.approximateMemoryUsage() * bloomRatio);
+        MemTable filtered = fill(new BloomFilterMemTable(new SkipListMemTable(comparator), filterBytes));
+
+        System.out.printf("Entries:    %d%n", num);
+        System.out.printf("Reads:      %d (absent keys)%n", reads);
+        System.out.printf("Filter:     %d bytes (bloom_ratio %.2f)%n", filterBytes, bloomRatio);
+        System.out.println("------------------------------------------------");
+
+        // 提前生成要查找的key，计时只包含memtable的查找
+        LookupKey[] missingKeys = new LookupKey[reads];
+        Random random = new Random(301);
+        for (int i = 0; i < reads; i++) {
+            missingKeys[i] = new LookupKey(key("missing", random.nextInt(num)), num);
+        }
+
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            readMissing(plain, missingKeys);
+            readMissing(filtered, missingKeys);
+        }
+        report("nofilter", readMissing(plain, missingKeys));
+        report("bloomfilter", readMissing(filtered, missingKeys));
+    }
+
+    private MemTable fill(MemTable memTable)
+    {
+        Slice value = Slices.wrappedBuffer(new byte[100]);
+        for (int i = 0; i < num; i++) {
+            memTable.add(i + 1, ValueType.VALUE, key("key", i), value);
+        }
+        return memTable;
+    }
+
+    // 返回耗时(纳秒)，查找的key都不在memtable中
+    private static long readMissing(MemTable memTable, LookupKey[] keys)
+    {
+        long found = 0;
+        long start = System.nanoTime();
+        for (LookupKey key : keys) {
+            if (memTable.get(key) != null) {
+                found++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found != 0) {
+            throw new IllegalStateException("found " + found + " keys that were never written");
+        }
+        return elapsed;
+    }
+
+    private static Slice key(String prefix, int i)
+    {
+        return Slices.wrappedBuffer(String.format("%s%016d", prefix, i).getBytes(UTF_8));
+    }
+
+    private void report(String name, long elapsedNanos)
+    {
+        System.out.printf("%-12s : %8d ms %10.3f micros/op%n", name, elapsedNanos / 1000000, (elapsedNanos / 1000.0) / reads);
+    }
+}
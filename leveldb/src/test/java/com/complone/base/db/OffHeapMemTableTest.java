@@ -0,0 +1,115 @@
+package com.complone.base.db;
+
+import com.complone.base.impl.InternalKey;
+import com.complone.base.impl.InternalKeyComparator;
+import com.complone.base.impl.LookupKey;
+import com.complone.base.impl.LookupResult;
+import com.complone.base.impl.ValueType;
+import com.complone.base.include.Slice;
+import com.complone.base.table.BytewiseComparator;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.complone.base.impl.SequenceNumber.MAX_SEQUENCE_NUMBER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class OffHeapMemTableTest {
+
+    private static final InternalKeyComparator COMPARATOR = new InternalKeyComparator(new BytewiseComparator());
+
+    @Test
+    public void testConcurrentInsert()
+            throws Exception
+    {
+        // write buffer很小，插入过程中不断分配新的arena block和link chunk
+        final MemTable memTable = new OffHeapMemTable(COMPARATOR, 64 << 10);
+        final int threads = 8;
+        final int keysPerThread = 5000;
+        final AtomicLong sequence = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                            throws Exception
+                    {
+                        start.await();
+                        // 每个key写两个版本，第二个版本的sequence更大
+                        for (int version = 1; version <= 2; version++) {
+                            for (int i = 0; i < keysPerThread; i++) {
+                                Slice key = key(i * threads + thread);
+                                memTable.add(sequence.incrementAndGet(), ValueType.VALUE, key, value(i * threads + thread, version));
+                                // 其他线程同时插入时，刚写入的版本必须能读到
+                                LookupResult result = memTable.get(new LookupKey(key, MAX_SEQUENCE_NUMBER));
+                                assertNotNull(result);
+                                assertEquals(result.getValue(), value(i * threads + thread, version));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        int keys = threads * keysPerThread;
+        for (int i = 0; i < keys; i++) {
+            LookupResult result = memTable.get(new LookupKey(key(i), sequence.get()));
+            assertNotNull(result, "key " + i);
+            assertEquals(result.getValue(), value(i, 2));
+        }
+
+        // 所有版本都在，并且按internal key排序：同一个key的新版本在前
+        MemTable.MemTableIterator iterator = memTable.iterator();
+        iterator.seekToFirst();
+        InternalKey previous = null;
+        int entries = 0;
+        while (iterator.hasNext()) {
+            Map.Entry<InternalKey, Slice> entry = iterator.next();
+            if (previous != null) {
+                assertTrue(COMPARATOR.compare(previous, entry.getKey()) < 0, previous + " >= " + entry.getKey());
+            }
+            int index = entries / 2;
+            assertEquals(entry.getKey().getUserKey(), key(index));
+            assertEquals(entry.getValue(), value(index, entries % 2 == 0 ? 2 : 1));
+            previous = entry.getKey();
+            entries++;
+        }
+        assertEquals(entries, 2 * keys);
+        assertFalse(memTable.isEmpty());
+    }
+
+    private static Slice key(int i)
+    {
+        return Slices.copiedBuffer(String.format("key%06d", i), UTF_8);
+    }
+
+    private static Slice value(int i, int version)
+    {
+        return Slices.copiedBuffer("value" + i + "-" + version, UTF_8);
+    }
+}
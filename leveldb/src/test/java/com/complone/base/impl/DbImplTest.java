@@ -0,0 +1,690 @@
+package com.complone.base.impl;
+
+import com.complone.base.CompactionFilter;
+import com.complone.base.CompactionStyle;
+import com.complone.base.CompressionType;
+import com.complone.base.Options;
+import com.complone.base.ReadOptions;
+import com.complone.base.Snapshot;
+import com.complone.base.WriteBatch;
+import com.complone.base.WriteOptions;
+import com.complone.base.db.MemTableFactories;
+import com.complone.base.db.RateLimiterImpl;
+import com.complone.base.db.Slices;
+import com.complone.base.db.WriteBufferManagerImpl;
+import com.complone.base.utils.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.complone.base.impl.DbConstants.L0_COMPACTION_TRIGGER;
+import static com.complone.base.impl.DbConstants.L0_STOP_WRITES_TRIGGER;
+import static com.complone.base.impl.DbConstants.NUM_LEVELS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class DbImplTest {
+
+    // 随机测试使用的key数量和每个测试的写操作数量
+    private static final int RANDOM_KEYS = 2000;
+    private static final int RANDOM_OPERATIONS = 20000;
+
+    private File databaseDir;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        databaseDir = FileUtils.createTempDir("leveldb");
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        FileUtils.deleteRecursively(databaseDir);
+    }
+
+    @Test
+    public void testConcurrentWriteSnapshots()
+            throws Exception
+    {
+        final DbImpl db = new DbImpl(new Options(), databaseDir);
+        final int threads = 8;
+        final int writes = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final byte[] key = bytes("key" + t);
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                            throws Exception
+                    {
+                        for (int i = 0; i < writes; i++) {
+                            // 写入返回的快照和getSnapshot交替注册，sequence不能倒退
+                            Snapshot writeSnapshot = db.put(key, bytes("value" + i), new WriteOptions().snapshot(true));
+                            Snapshot snapshot = db.getSnapshot();
+                            try {
+                                assertEquals(string(db.get(key, new ReadOptions().snapshot(writeSnapshot))), "value" + i);
+                                assertEquals(string(db.get(key, new ReadOptions().snapshot(snapshot))), "value" + i);
+                            }
+                            finally {
+                                writeSnapshot.close();
+                                snapshot.close();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            db.close();
+        }
+    }
+
+    @Test
+    public void testCompactionFilterKeepsSnapshotVersions()
+            throws Exception
+    {
+        // 删除值为removed的记录
+        Options options = new Options().compactionFilter(new CompactionFilter()
+        {
+            @Override
+            public String name()
+            {
+                return "remove";
+            }
+
+            @Override
+            public byte[] filter(int level, byte[] key, byte[] existingValue)
+            {
+                return Arrays.equals(existingValue, bytes("removed")) ? null : existingValue;
+            }
+        });
+        DbImpl db = new DbImpl(options, databaseDir);
+        try {
+            db.put(bytes("key"), bytes("old"));
+            Snapshot snapshot = db.getSnapshot();
+            db.put(bytes("key"), bytes("removed"));
+            db.put(bytes("other"), bytes("removed"));
+
+            // 两个版本在同一次compaction中，最新的版本被filter删除后，快照仍然要能读到旧版本
+            db.flushMemTable();
+            compactAll(db);
+            assertNull(db.get(bytes("key")));
+            assertNull(db.get(bytes("other")));
+            assertEquals(string(db.get(bytes("key"), new ReadOptions().snapshot(snapshot))), "old");
+
+            snapshot.close();
+            compactAll(db);
+            assertNull(db.get(bytes("key")));
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testFifoWritesDoNotStall()
+            throws Exception
+    {
+        // 每个memtable大约32KB，容量上限可以保留远多于L0_STOP_WRITES_TRIGGER个文件
+        Options options = new Options()
+                .compressionType(CompressionType.NONE)
+                .writeBufferSize(32 << 10)
+                .compactionStyle(CompactionStyle.FIFO)
+                .fifoMaxTableFilesSize(1 << 20);
+        DbImpl db = new DbImpl(options, databaseDir);
+        try {
+            byte[] value = new byte[1024];
+            int entries = 100 * 32;
+            for (int i = 0; i < entries; i++) {
+                db.put(bytes(String.format("key%08d", i)), value);
+            }
+            db.flushMemTable();
+            db.compactRange(0, Slices.wrappedBuffer(bytes("a")), Slices.wrappedBuffer(bytes("z")));
+
+            assertTrue(db.numberOfFilesInLevel(0) > L0_STOP_WRITES_TRIGGER, "level 0 files: " + db.numberOfFilesInLevel(0));
+            for (int level = 1; level < NUM_LEVELS; level++) {
+                assertEquals(db.numberOfFilesInLevel(level), 0);
+            }
+            // 最旧的文件已经被删除，最新的数据还在
+            assertNull(db.get(bytes(String.format("key%08d", 0))));
+            assertNotNull(db.get(bytes(String.format("key%08d", entries - 1))));
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testManualCompactionWaitsForRunningCompaction()
+            throws Exception
+    {
+        // level 0的compaction读到b1时暂停，直到manual compaction已经开始等待
+        final CountDownLatch compactionStarted = new CountDownLatch(1);
+        final CountDownLatch resumeCompaction = new CountDownLatch(1);
+        Options options = new Options().compactionFilter(new CompactionFilter()
+        {
+            @Override
+            public String name()
+            {
+                return "block";
+            }
+
+            @Override
+            public byte[] filter(int level, byte[] key, byte[] existingValue)
+            {
+                if (level == 0 && Arrays.equals(key, bytes("b1"))) {
+                    compactionStarted.countDown();
+                    try {
+                        resumeCompaction.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return existingValue;
+            }
+        });
+        final DbImpl db = new DbImpl(options, databaseDir);
+        try {
+            // level 2: [a, z]，level 1: [b, c]和[m, n]
+            putAndFlush(db, "a", "z");
+            putAndFlush(db, "m", "n");
+            putAndFlush(db, "b", "c");
+            assertEquals(db.numberOfFilesInLevel(1), 2);
+            assertEquals(db.numberOfFilesInLevel(2), 1);
+
+            // 和level 1的[b, c]重叠，留在level 0，第L0_COMPACTION_TRIGGER个文件触发compaction
+            for (int i = 0; i < L0_COMPACTION_TRIGGER; i++) {
+                putAndFlush(db, "b1", "c1");
+            }
+            compactionStarted.await();
+
+            Thread manual = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    db.compactRange(1, Slices.wrappedBuffer(bytes("m")), Slices.wrappedBuffer(bytes("n")));
+                }
+            });
+            manual.start();
+            Thread.sleep(100);
+            resumeCompaction.countDown();
+            manual.join();
+
+            // manual compaction在level 0的compaction之后执行，level 2的文件覆盖了所有key，
+            // [m, n]连同level 0 compaction的输出一起合并到level 2
+            assertEquals(db.numberOfFilesInLevel(0), 0);
+            assertEquals(db.numberOfFilesInLevel(1), 0);
+            assertEquals(string(db.get(bytes("m"))), "m");
+            assertEquals(string(db.get(bytes("b1"))), "b1");
+        }
+        finally {
+            resumeCompaction.countDown();
+            db.close();
+        }
+    }
+
+    @Test
+    public void testWriteErrorIsSticky()
+            throws Exception
+    {
+        DbImpl db = new DbImpl(new Options(), databaseDir);
+        try {
+            db.put(bytes("a"), bytes("a"));
+            VersionSet versions = (VersionSet) field(db, "versions");
+            long lastSequence = versions.getLastSequence();
+
+            // 关闭日志，下一次写日志失败
+            ((LogWriter) field(db, "log")).close();
+
+            try {
+                db.put(bytes("b"), bytes("b"));
+                fail("expected log write to fail");
+            }
+            catch (RuntimeException expected) {
+            }
+            // 失败的写入没有发布
+            assertEquals(versions.getLastSequence(), lastSequence);
+
+            // 之后的写入都被拒绝
+            try {
+                db.put(bytes("c"), bytes("c"));
+                fail("expected write to be refused");
+            }
+            catch (DbImpl.BackgroundProcessingException expected) {
+            }
+            assertEquals(versions.getLastSequence(), lastSequence);
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void testRandomOperations()
+            throws Exception
+    {
+        checkRandomOperations(randomTestOptions(), 1);
+    }
+
+    @Test
+    public void testRandomOperationsConcurrentWriters()
+            throws Exception
+    {
+        // 并发的写入合并到同一个write group中
+        checkRandomOperations(randomTestOptions(), 8);
+    }
+
+    @Test
+    public void testRandomOperationsPipelinedWrites()
+            throws Exception
+    {
+        // memtable很小，写日志和插入memtable的过程中经常切换memtable
+        checkRandomOperations(new Options().writeBufferSize(16 << 10), 16);
+    }
+
+    @Test
+    public void testRandomOperationsParallelMemTableInsert()
+            throws Exception
+    {
+        // 大部分write batch和合并之后的write group都超过阈值，分成多份并行插入
+        checkRandomOperations(randomTestOptions().parallelMemTableInsertThreshold(4), 4);
+    }
+
+    @Test
+    public void testRandomOperationsOffHeapMemTable()
+            throws Exception
+    {
+        checkRandomOperations(randomTestOptions().memTableFactory(MemTableFactories.offHeap()), 4);
+    }
+
+    @Test
+    public void testRandomOperationsPrefixHashMemTable()
+            throws Exception
+    {
+        // 前缀key0000到key0020，iterator和seek需要跨越多个前缀
+        checkRandomOperations(randomTestOptions().memTableFactory(MemTableFactories.prefixHash(7)), 4);
+    }
+
+    @Test
+    public void testRandomOperationsVectorMemTable()
+            throws Exception
+    {
+        checkRandomOperations(randomTestOptions().memTableFactory(MemTableFactories.vector()), 4);
+    }
+
+    @Test
+    public void testRandomOperationsMemTableBloomFilter()
+            throws Exception
+    {
+        checkRandomOperations(randomTestOptions().memTableBloomSizeRatio(0.1), 4);
+    }
+
+    @Test
+    public void testRandomOperationsWriteBufferManager()
+            throws Exception
+    {
+        // 预算比一个memtable还小，由write buffer manager触发memtable切换
+        WriteBufferManagerImpl writeBufferManager = new WriteBufferManagerImpl(32 << 10);
+        checkRandomOperations(new Options().writeBufferSize(1 << 20).writeBufferManager(writeBufferManager), 4);
+        // DB关闭之后释放了所有memtable占用的内存
+        assertEquals(writeBufferManager.memoryUsage(), 0);
+    }
+
+    @Test
+    public void testRandomOperationsMultipleImmutableMemTables()
+            throws Exception
+    {
+        // 查找和iterator要按从新到旧的顺序访问所有immutable memtable
+        checkRandomOperations(randomTestOptions().maxWriteBufferNumber(4), 4);
+    }
+
+    @Test
+    public void testRandomOperationsFrequentFlushes()
+            throws Exception
+    {
+        // memtable很小，flush在单独的线程上和level 0的compaction同时进行
+        checkRandomOperations(new Options().writeBufferSize(8 << 10).maxWriteBufferNumber(3), 4);
+    }
+
+    @Test
+    public void testRandomOperationsParallelCompactions()
+            throws Exception
+    {
+        checkRandomOperations(new Options().writeBufferSize(16 << 10).maxBackgroundCompactions(4), 4);
+    }
+
+    @Test
+    public void testRandomOperationsSubcompactions()
+            throws Exception
+    {
+        // 每个level 0文件大约4MB，level 0的compaction输入超过多个TARGET_FILE_SIZE，拆分成subcompaction
+        Options options = new Options()
+                .compressionType(CompressionType.NONE)
+                .writeBufferSize(4 << 20)
+                .maxBackgroundCompactions(2)
+                .maxSubcompactions(4);
+        checkRandomOperations(options, 4, 8000);
+    }
+
+    @Test
+    public void testRandomOperationsRateLimiter()
+            throws Exception
+    {
+        RateLimiterImpl rateLimiter = new RateLimiterImpl(32 << 20);
+        checkRandomOperations(randomTestOptions().rateLimiter(rateLimiter), 4);
+        // flush和compaction的写入都经过了rate limiter
+        assertTrue(rateLimiter.totalBytesThrough() > 0);
+    }
+
+    @Test
+    public void testRandomOperationsTtl()
+            throws Exception
+    {
+        // 测试期间都不会过期，值带上过期时间之后读出来的内容不变
+        checkRandomOperations(randomTestOptions().ttlSeconds(3600), 4);
+    }
+
+    @Test
+    public void testRandomOperationsUniversalCompaction()
+            throws Exception
+    {
+        checkRandomOperations(randomTestOptions().compactionStyle(CompactionStyle.UNIVERSAL), 4);
+    }
+
+    @Test
+    public void testMultiGetMatchesGet()
+            throws Exception
+    {
+        DbImpl db = new DbImpl(new Options(), databaseDir);
+        try {
+            // 数据分布在sstable、memtable中，部分被覆盖或删除
+            putAndFlush(db, "a", "b", "c", "d");
+            db.put(bytes("b"), bytes("b2"));
+            db.delete(bytes("c"));
+            Snapshot snapshot = db.getSnapshot();
+            db.put(bytes("a"), bytes("a2"));
+            db.delete(bytes("d"));
+            db.put(bytes("e"), bytes("e"));
+
+            // 包含重复的key和不存在的key，顺序和排序顺序不同
+            List<byte[]> keys = new ArrayList<>();
+            for (String key : Arrays.asList("e", "a", "missing", "d", "c", "b", "a", "0")) {
+                keys.add(bytes(key));
+            }
+            checkMultiGet(db, keys, new ReadOptions());
+            checkMultiGet(db, keys, new ReadOptions().snapshot(snapshot));
+            snapshot.close();
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    private static void checkMultiGet(DbImpl db, List<byte[]> keys, ReadOptions readOptions)
+    {
+        List<byte[]> values = db.multiGet(keys, readOptions);
+        assertEquals(values.size(), keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(string(values.get(i)), string(db.get(keys.get(i), readOptions)), "key " + string(keys.get(i)));
+        }
+    }
+
+    // 每个memtable大约64KB，随机写入会产生多次flush和compaction
+    private static Options randomTestOptions()
+    {
+        return new Options().writeBufferSize(64 << 10);
+    }
+
+    private void checkRandomOperations(Options options, int threads)
+            throws Exception
+    {
+        checkRandomOperations(options, threads, 500);
+    }
+
+    /**
+     * threads个线程随机执行put、delete和write batch，结束之后用get、multiGet、iterator和seek与模型对比，
+     * compaction之后和重新打开之后再对比一次。每个线程只写自己的key，最终结果与线程之间的交错顺序无关。
+     */
+    private void checkRandomOperations(Options options, final int threads, final int maxValueSize)
+            throws Exception
+    {
+        final List<Map<String, String>> models = new ArrayList<>();
+        final DbImpl db = new DbImpl(options, databaseDir);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                final Map<String, String> model = new TreeMap<>();
+                models.add(model);
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                            throws Exception
+                    {
+                        randomWrites(db, new Random(301 + thread), thread, threads, maxValueSize, model);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        TreeMap<String, String> model = new TreeMap<>();
+        for (Map<String, String> threadModel : models) {
+            model.putAll(threadModel);
+        }
+        Random random = new Random(17);
+        try {
+            checkAgainstModel(db, model, random);
+            db.flushMemTable();
+            compactAll(db);
+            checkAgainstModel(db, model, random);
+        }
+        finally {
+            db.close();
+        }
+
+        // 重新打开，从日志和sstable恢复
+        DbImpl reopened = new DbImpl(options, databaseDir);
+        try {
+            checkAgainstModel(reopened, model, random);
+        }
+        finally {
+            reopened.close();
+        }
+    }
+
+    // 第thread个线程只写编号除以threads余thread的key
+    private static void randomWrites(DbImpl db, Random random, int thread, int threads, int maxValueSize, Map<String, String> model)
+            throws Exception
+    {
+        for (int i = 0; i < RANDOM_OPERATIONS / threads; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 6) {
+                String key = randomKey(random, thread, threads);
+                String value = randomValue(random, maxValueSize);
+                db.put(bytes(key), bytes(value));
+                model.put(key, value);
+                // 写入返回之后立即可见
+                assertEquals(string(db.get(bytes(key))), value, "key " + key);
+            }
+            else if (operation < 8) {
+                String key = randomKey(random, thread, threads);
+                db.delete(bytes(key));
+                model.remove(key);
+                assertNull(db.get(bytes(key)), "key " + key);
+            }
+            else {
+                // 同一个batch中可能多次写同一个key，以最后一次为准
+                WriteBatch batch = db.createWriteBatch();
+                try {
+                    int size = 1 + random.nextInt(20);
+                    for (int j = 0; j < size; j++) {
+                        String key = randomKey(random, thread, threads);
+                        if (random.nextInt(4) == 0) {
+                            batch.delete(bytes(key));
+                            model.remove(key);
+                        }
+                        else {
+                            String value = randomValue(random, maxValueSize);
+                            batch.put(bytes(key), bytes(value));
+                            model.put(key, value);
+                        }
+                    }
+                    db.write(batch);
+                }
+                finally {
+                    batch.close();
+                }
+            }
+        }
+    }
+
+    private static void checkAgainstModel(DbImpl db, TreeMap<String, String> model, Random random)
+    {
+        // 多出的key从来没有写入过
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < RANDOM_KEYS + 10; i++) {
+            String key = key(i);
+            assertEquals(string(db.get(bytes(key))), model.get(key), "key " + key);
+            keys.add(bytes(key));
+        }
+
+        // 打乱顺序并加入重复的key
+        for (int i = 0; i < 100; i++) {
+            keys.add(keys.get(random.nextInt(keys.size())));
+        }
+        Collections.shuffle(keys, random);
+        List<byte[]> values = db.multiGet(keys);
+        assertEquals(values.size(), keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(string(values.get(i)), model.get(string(keys.get(i))), "key " + string(keys.get(i)));
+        }
+
+        SeekingIteratorAdapter iterator = db.iterator();
+        try {
+            iterator.seekToFirst();
+            checkIterator(iterator, model, model.size());
+
+            // 目标key可能存在、不存在或者落在两个key之间
+            for (int i = 0; i < 200; i++) {
+                String target = key(random.nextInt(RANDOM_KEYS + 10));
+                if (random.nextBoolean()) {
+                    target += "x";
+                }
+                iterator.seek(bytes(target));
+                checkIterator(iterator, model.tailMap(target, true), 10);
+            }
+        }
+        finally {
+            iterator.close();
+        }
+    }
+
+    // 检查iterator接下来的最多count个entry和expected一致，expected不足count个时iterator也要结束
+    private static void checkIterator(SeekingIteratorAdapter iterator, Map<String, String> expected, int count)
+    {
+        int checked = 0;
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            if (checked == count) {
+                return;
+            }
+            assertTrue(iterator.hasNext(), "missing key " + entry.getKey());
+            SeekingIteratorAdapter.DbEntry actual = iterator.next();
+            assertEquals(string(actual.getKey()), entry.getKey());
+            assertEquals(string(actual.getValue()), entry.getValue(), "key " + entry.getKey());
+            checked++;
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static String randomKey(Random random, int thread, int threads)
+    {
+        return key(random.nextInt(RANDOM_KEYS / threads) * threads + thread);
+    }
+
+    private static String key(int i)
+    {
+        return String.format("key%06d", i);
+    }
+
+    private static String randomValue(Random random, int maxValueSize)
+    {
+        char[] value = new char[random.nextInt(maxValueSize)];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(value);
+    }
+
+    private static Object field(DbImpl db, String name)
+            throws ReflectiveOperationException
+    {
+        Field field = DbImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(db);
+    }
+
+    private static void putAndFlush(DbImpl db, String... keys)
+    {
+        for (String key : keys) {
+            db.put(bytes(key), bytes(key));
+        }
+        db.flushMemTable();
+    }
+
+    private static void compactAll(DbImpl db)
+    {
+        for (int level = 0; level < NUM_LEVELS - 1; level++) {
+            db.compactRange(level, Slices.wrappedBuffer(bytes("a")), Slices.wrappedBuffer(bytes("z")));
+        }
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(UTF_8);
+    }
+
+    private static String string(byte[] value)
+    {
+        return value == null ? null : new String(value, UTF_8);
+    }
+}
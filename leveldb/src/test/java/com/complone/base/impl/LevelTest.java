@@ -0,0 +1,84 @@
+package com.complone.base.impl;
+
+import com.complone.base.db.Slices;
+import com.complone.base.include.Slice;
+import com.complone.base.table.BytewiseComparator;
+import com.complone.base.utils.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static com.complone.base.impl.ValueType.VALUE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class LevelTest {
+
+    private static final InternalKeyComparator COMPARATOR = new InternalKeyComparator(new BytewiseComparator());
+
+    private File databaseDir;
+    private TableCache tableCache;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        databaseDir = FileUtils.createTempDir("leveldb");
+        tableCache = new TableCache(databaseDir, 10, COMPARATOR.getUserComparator(), false, null, null);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        tableCache.close();
+        FileUtils.deleteRecursively(databaseDir);
+    }
+
+    @Test
+    public void testLevelOverlapsRange()
+    {
+        Level level = new Level(1, asList(file(1, "c", "f"), file(2, "k", "z")), tableCache, COMPARATOR);
+
+        // 范围的结束key落在文件内部，没有超过文件的最大key
+        assertTrue(level.someFileOverlapsRange(slice("a"), slice("d")));
+        assertTrue(level.someFileOverlapsRange(slice("g"), slice("m")));
+        assertTrue(level.someFileOverlapsRange(slice("d"), slice("e")));
+        assertTrue(level.someFileOverlapsRange(slice("a"), slice("c")));
+        assertTrue(level.someFileOverlapsRange(slice("f"), slice("k")));
+
+        assertFalse(level.someFileOverlapsRange(slice("a"), slice("b")));
+        assertFalse(level.someFileOverlapsRange(slice("g"), slice("j")));
+        assertFalse(level.someFileOverlapsRange(slice("zz"), slice("zzz")));
+    }
+
+    @Test
+    public void testLevel0OverlapsRange()
+    {
+        // level 0的文件互相重叠，按文件编号而不是key排列
+        Level0 level0 = new Level0(asList(file(3, "m", "p"), file(2, "a", "z"), file(1, "b", "c")), tableCache, COMPARATOR);
+
+        assertTrue(level0.someFileOverlapsRange(slice("d"), slice("e")));
+        assertTrue(level0.someFileOverlapsRange(slice("n"), slice("o")));
+        assertFalse(level0.someFileOverlapsRange(slice("zz"), slice("zzz")));
+
+        Level0 disjoint = new Level0(asList(file(2, "m", "p"), file(1, "b", "c")), tableCache, COMPARATOR);
+        assertTrue(disjoint.someFileOverlapsRange(slice("a"), slice("b")));
+        assertTrue(disjoint.someFileOverlapsRange(slice("n"), slice("n")));
+        assertFalse(disjoint.someFileOverlapsRange(slice("d"), slice("l")));
+        assertFalse(disjoint.someFileOverlapsRange(slice("q"), slice("z")));
+    }
+
+    private static FileMetaData file(long number, String smallest, String largest)
+    {
+        return new FileMetaData(number, 0, new InternalKey(slice(smallest), 100, VALUE), new InternalKey(slice(largest), 100, VALUE));
+    }
+
+    private static Slice slice(String value)
+    {
+        return Slices.copiedBuffer(value, UTF_8);
+    }
+}
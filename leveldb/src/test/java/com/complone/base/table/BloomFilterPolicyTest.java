@@ -0,0 +1,87 @@
+package com.complone.base.table;
+
+import com.complone.base.db.Slices;
+import com.complone.base.include.DynamicSliceOutput;
+import com.complone.base.include.Slice;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class BloomFilterPolicyTest {
+
+    private static final BloomFilterPolicy POLICY = new BloomFilterPolicy(10);
+
+    @Test
+    public void testEmptyFilter()
+            throws Exception
+    {
+        Slice filter = createFilter(new ArrayList<Slice>());
+        assertFalse(keyMayMatch("hello", filter));
+        assertFalse(keyMayMatch("world", filter));
+    }
+
+    @Test
+    public void testSmall()
+            throws Exception
+    {
+        List<Slice> keys = new ArrayList<>();
+        keys.add(Slices.copiedBuffer("hello", UTF_8));
+        keys.add(Slices.copiedBuffer("world", UTF_8));
+        Slice filter = createFilter(keys);
+        assertTrue(keyMayMatch("hello", filter));
+        assertTrue(keyMayMatch("world", filter));
+        assertFalse(keyMayMatch("x", filter));
+        assertFalse(keyMayMatch("foo", filter));
+    }
+
+    @Test
+    public void testFalsePositiveRate()
+            throws Exception
+    {
+        for (int length = 1; length <= 10000; length *= 10) {
+            List<Slice> keys = new ArrayList<>();
+            for (int i = 0; i < length; i++) {
+                keys.add(key(i));
+            }
+            Slice filter = createFilter(keys);
+
+            // 所有加入过的key都必须匹配
+            for (int i = 0; i < length; i++) {
+                assertTrue(POLICY.keyMayMatch(key(i), filter));
+            }
+
+            // 10 bits per key的误判率应该在2%以内
+            int falsePositives = 0;
+            for (int i = 0; i < 10000; i++) {
+                if (POLICY.keyMayMatch(key(i + 1000000000), filter)) {
+                    falsePositives++;
+                }
+            }
+            assertTrue(falsePositives <= 200, "false positives " + falsePositives + " for length " + length);
+        }
+    }
+
+    private static Slice createFilter(List<Slice> keys)
+    {
+        DynamicSliceOutput output = new DynamicSliceOutput(64);
+        POLICY.appendFilter(keys, output);
+        return output.slice();
+    }
+
+    private static boolean keyMayMatch(String key, Slice filter)
+    {
+        return POLICY.keyMayMatch(Slices.copiedBuffer(key, UTF_8), filter);
+    }
+
+    private static Slice key(int i)
+    {
+        Slice key = Slices.allocate(4);
+        key.setInt(0, i);
+        return key;
+    }
+}